@@ -0,0 +1,92 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+// Blocking waits the boot process can't do from Java: on the global property serial (a futex
+// inside bionic) and on process exit (pidfd). See NativeWait.
+
+#include <jni.h>
+#include <dlfcn.h>
+#include <errno.h>
+#include <poll.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/syscall.h>
+
+#ifndef __NR_pidfd_open
+#define __NR_pidfd_open 434
+#endif
+
+struct prop_info;
+
+typedef uint32_t (*area_serial_t)(void);
+typedef bool (*wait_t)(const struct prop_info*, uint32_t, uint32_t*, const struct timespec*);
+typedef uint32_t (*wait_any_t)(uint32_t);
+
+// not all of these are in the NDK headers, and __system_property_wait is API 26+
+static area_serial_t area_serial = NULL;
+static wait_t property_wait = NULL;
+static wait_any_t property_wait_any = NULL;
+
+JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved) {
+    area_serial = (area_serial_t)dlsym(RTLD_DEFAULT, "__system_property_area_serial");
+    property_wait = (wait_t)dlsym(RTLD_DEFAULT, "__system_property_wait");
+    property_wait_any = (wait_any_t)dlsym(RTLD_DEFAULT, "__system_property_wait_any");
+    return JNI_VERSION_1_6;
+}
+
+JNIEXPORT jlong JNICALL Java_eu_chainfire_liveboot_shell_NativeWait_propertySerial(JNIEnv* env, jclass clazz) {
+    if (area_serial == NULL) return -1;
+    return (jlong)area_serial();
+}
+
+JNIEXPORT jlong JNICALL Java_eu_chainfire_liveboot_shell_NativeWait_propertyWait(JNIEnv* env, jclass clazz, jlong serial, jint timeoutMs) {
+    // returns the new serial, the old one on timeout, -1 if we can't wait
+    if (property_wait != NULL) {
+        uint32_t result = (uint32_t)serial;
+        struct timespec timeout;
+        timeout.tv_sec = timeoutMs / 1000;
+        timeout.tv_nsec = (timeoutMs % 1000) * 1000000L;
+        if (!property_wait(NULL, (uint32_t)serial, &result, &timeout)) return serial;
+        return (jlong)result;
+    } else if (property_wait_any != NULL) {
+        // pre-O, no timeout
+        return (jlong)property_wait_any((uint32_t)serial);
+    }
+    return -1;
+}
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_liveboot_shell_NativeWait_pidfdOpen(JNIEnv* env, jclass clazz, jint pid) {
+    // returns the fd, or -errno (ENOSYS before Linux 5.3)
+    int fd = (int)syscall(__NR_pidfd_open, (pid_t)pid, 0);
+    return fd >= 0 ? fd : -errno;
+}
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_liveboot_shell_NativeWait_pidfdWait(JNIEnv* env, jclass clazz, jint fd, jint timeoutMs) {
+    // returns 1 if the process exited, 0 on timeout, -errno on error
+    struct pollfd pfd;
+    pfd.fd = fd;
+    pfd.events = POLLIN;
+    pfd.revents = 0;
+    int ready = poll(&pfd, 1, timeoutMs);
+    if (ready < 0) return errno == EINTR ? 0 : -errno;
+    return ready > 0 ? 1 : 0;
+}
+
+JNIEXPORT void JNICALL Java_eu_chainfire_liveboot_shell_NativeWait_close(JNIEnv* env, jclass clazz, jint fd) {
+    close(fd);
+}
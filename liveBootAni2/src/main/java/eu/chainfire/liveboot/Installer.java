@@ -37,12 +37,14 @@ import eu.chainfire.librootjava.RootJava;
 import eu.chainfire.librootjavadaemon.RootDaemon;
 import eu.chainfire.libsuperuser.Shell;
 import eu.chainfire.libsuperuser.Toolbox;
+import eu.chainfire.liveboot.shell.BootProfile;
+import eu.chainfire.liveboot.shell.GlyphBake;
 import eu.chainfire.liveboot.shell.Runner;
 
 public class Installer {
     public enum Mode { SU_D, INIT_D, SU_SU_D, SBIN_SU_D, MAGISK_CORE, MAGISK_ADB, KERNELSU }
     
-    private static final int LAST_SCRIPT_UPDATE = 188;
+    private static final int LAST_SCRIPT_UPDATE = 192;
     private static final String[] SYSTEM_SCRIPTS_SU_D = new String[] { "/system/su.d/0000liveboot" };
     private static final String[] SYSTEM_SCRIPTS_INIT_D = new String[] { "/system/etc/init.d/0000liveboot" };
     private static final String[] SYSTEM_SCRIPTS_SU_SU_D = new String[] { "/su/su.d/0000liveboot" };
@@ -162,11 +164,39 @@ public class Installer {
         return ret;
     }
         
-    public static synchronized List<String> getLaunchScript(Context context, boolean boot) {
-        Settings settings = Settings.getInstance(context);
+    private static File getProfile(Context context, boolean boot) {
+        context = directBootContext(context);
 
+        String filesDir = context.getFilesDir().getAbsolutePath();
+        return new File(String.format(Locale.ENGLISH, "%s/%s.profile", filesDir, boot ? "liveboot" : "test"));
+    }
+
+    private static File getGlyphs(Context context) {
         context = directBootContext(context);
 
+        return new File(String.format(Locale.ENGLISH, "%s/liveboot.glyphs", context.getFilesDir().getAbsolutePath()));
+    }
+
+    public static synchronized void installGlyphs(Context context, Point dms) {
+        // the boot maps this instead of rasterizing the font, only rebaked if what it depends on changed
+        Settings settings = Settings.getInstance(context);
+        int lines = 0;
+        try {
+            lines = Integer.valueOf(settings.LINES.get(), 10);
+        } catch (Exception e) {
+            Logger.ex(e);
+        }
+        if ((dms.y <= 0) || (lines <= 0) || (dms.y / lines <= 0)) return;
+
+        File file = getGlyphs(context);
+        int checksum = GlyphBake.checksum(dms.x, dms.y, lines);
+        if (GlyphBake.readChecksum(file) == checksum) return;
+        GlyphBake.write(file, checksum, GlyphBake.render(dms.y / lines));
+    }
+
+    public static synchronized List<String> getProfileOptions(Context context, boolean boot, Point dms) {
+        Settings settings = Settings.getInstance(context);
+
         boolean haveLogcat = true;
         if (
                 settings.LOGCAT_LEVELS.get().equals(Settings.LOGCAT_LEVELS_NONE) ||
@@ -175,10 +205,7 @@ public class Installer {
             haveLogcat = false;
         }
 
-        Policies.setPatched(true);
         List<String> params = new ArrayList<String>();
-        params.add(context.getPackageCodePath());
-        params.add(boot ? "boot" : "test");
         if (settings.TRANSPARENT.get()) params.add("transparent");
         if (settings.DARK.get()) params.add("dark");
         params.add("logcatlevels=" + settings.LOGCAT_LEVELS.get());
@@ -186,12 +213,44 @@ public class Installer {
         params.add("logcatformat=" + settings.LOGCAT_FORMAT.get());
         if (!settings.LOGCAT_COLORS.get()) params.add("logcatnocolors");
         params.add("dmesg=" + ((settings.DMESG.get() && (boot || !haveLogcat)) ? Settings.DMESG_ALL : Settings.DMESG_NONE));
+        if (settings.STAGED.get()) params.add("staged");
+        params.add("lastkmsg=" + settings.LAST_KMSG.get());
         params.add("lines=" + settings.LINES.get());
         if (settings.WORD_WRAP.get()) params.add("wordwrap");
+        params.add("sticky=" + settings.STICKY.get());
+        params.add("renderer=" + settings.RENDERER.get());
+        params.add("glyphs=" + getGlyphs(context).getAbsolutePath());
+        params.add("native=" + (new File(context.getApplicationInfo().nativeLibraryDir, "libliveboot.so")).getAbsolutePath());
+        if (settings.PROPERTY_TIMELINE.get()) params.add("properties");
+        if (settings.CRASHES.get()) params.add("crashes");
+        if (settings.PRESSURE.get()) params.add("pressure");
         if (settings.SAVE_LOGS.get() && boot) params.add("save");
-        Point dms = getScreenDimensions();
+        if (settings.FTRACE.get() && boot) params.add("ftrace");
+        if (boot) params.add("capture=" + settings.CAPTURE.get());
         params.add("fallbackwidth=" + dms.x);
         params.add("fallbackheight=" + dms.y);
+        return params;
+    }
+
+    public static synchronized void installProfiles(Context context) {
+        // only the profiles change with the settings, the launch scripts just point at them
+        // and dumpsys display through su is slow, so only ask once
+        directBootContext(context).getFilesDir().mkdirs();
+        Point dms = getScreenDimensions();
+        for (boolean boot : new boolean[] { true, false }) {
+            BootProfile.write(getProfile(context, boot), getProfileOptions(context, boot, dms));
+        }
+        installGlyphs(context, dms);
+    }
+
+    public static synchronized List<String> getLaunchScript(Context context, boolean boot) {
+        context = directBootContext(context);
+
+        Policies.setPatched(true);
+        List<String> params = new ArrayList<String>();
+        params.add(context.getPackageCodePath());
+        params.add(boot ? "boot" : "test");
+        params.add("profile=" + getProfile(context, boot).getAbsolutePath());
         String relocate = AppProcess.shouldAppProcessBeRelocated() ? "/dev" : null;
         if (boot) {
             return RootDaemon.getLaunchScript(context, Runner.class, null, relocate, params.toArray(new String[params.size()]), BuildConfig.APPLICATION_ID + ":root");
@@ -230,6 +289,8 @@ public class Installer {
 
         String filesDir = context.getFilesDir().getAbsolutePath();
 
+        installProfiles(context);
+
         String app_process = AppProcess.getAppProcess();
 
         List<String> commands = new ArrayList<String>();
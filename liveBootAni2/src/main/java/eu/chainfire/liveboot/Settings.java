@@ -207,11 +207,21 @@ public class Settings {
     public static final String DMESG_ALL                       = "0-99";
     public static final String DMESG_NONE                      = "0--1";
     public BooleanSetting      DMESG                           = new BooleanSetting(this, "dmesg", true);
+    public BooleanSetting      STAGED                          = new BooleanSetting(this, "staged", false);
+    public StringSetting       LAST_KMSG                       = new StringSetting(this, "last_kmsg", "0");
 
     public StringSetting       LINES                           = new StringSetting(this, "lines", "80");
     public BooleanSetting      WORD_WRAP                       = new BooleanSetting(this, "word_wrap", true);
+    public StringSetting       STICKY                          = new StringSetting(this, "sticky", "0");
+    public StringSetting       RENDERER                        = new StringSetting(this, "renderer", "textures");
+
+    public BooleanSetting      PROPERTY_TIMELINE               = new BooleanSetting(this, "property_timeline", false);
+    public BooleanSetting      CRASHES                         = new BooleanSetting(this, "crashes", false);
+    public BooleanSetting      PRESSURE                        = new BooleanSetting(this, "pressure", false);
 
     public BooleanSetting      SAVE_LOGS                       = new BooleanSetting(this, "save_logs", false);
+    public BooleanSetting      FTRACE                          = new BooleanSetting(this, "ftrace", false);
+    public StringSetting       CAPTURE                         = new StringSetting(this, "capture", "0");
 
     public BooleanSetting      HAVE_PRO_CACHED                 = new BooleanSetting(this, "have_pro_cached", false);
     public BooleanSetting      FREELOAD                        = new BooleanSetting(this, "freeload", false);
@@ -43,6 +43,7 @@ import android.preference.PreferenceScreen;
 import eu.chainfire.librootjava.Logger;
 import eu.chainfire.libsuperuser.Shell;
 import eu.chainfire.liveboot.shell.Logcat;
+import eu.chainfire.liveboot.shell.Runner;
 import eu.chainfire.liveboot.Installer.Mode;
 
 import java.util.HashSet;
@@ -59,6 +60,10 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
     private MultiSelectListPreference prefLogcatBuffers = null;
     private ListPreference prefLogcatFormat = null;
     private ListPreference prefLines = null;   
+    private ListPreference prefSticky = null;
+    private ListPreference prefCapture = null;
+    private ListPreference prefLastKmsg = null;
+    private ListPreference prefRenderer = null;
     
     private InAppPurchases iap = null;
     private volatile boolean pro = false;
@@ -551,6 +556,15 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
 
         PreferenceCategory catDmesg = Pref.Category(activity, root, R.string.settings_category_dmesg);
         Pref.Check(activity, catDmesg, R.string.settings_dmesg_title, R.string.settings_dmesg_description, settings.DMESG.name, settings.DMESG.defaultValue);        
+        Pref.Check(activity, catDmesg, R.string.settings_staged_title, R.string.settings_staged_description, settings.STAGED.name, settings.STAGED.defaultValue);
+
+        CharSequence[] lastKmsg = new CharSequence[] {
+                "0",
+                "20",
+                "40",
+                "80"
+        };
+        prefLastKmsg = Pref.List(activity, catDmesg, R.string.settings_last_kmsg_title, 0, R.string.settings_last_kmsg_title, settings.LAST_KMSG.name, settings.LAST_KMSG.defaultValue, lastKmsg, lastKmsg, true);
 
         PreferenceCategory catOptions = Pref.Category(activity, root, R.string.settings_category_settings);
         
@@ -576,9 +590,41 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
         prefLines = Pref.List(activity, catOptions, R.string.settings_lines_title, 0, R.string.settings_lines_title, settings.LINES.name, settings.LINES.defaultValue, lines, lines, true);
         
         Pref.Check(activity, catOptions, R.string.settings_wordwrap_title, R.string.settings_wordwrap_description, settings.WORD_WRAP.name, settings.WORD_WRAP.defaultValue);
+
+        CharSequence[] sticky = new CharSequence[] {
+                "0",
+                "3",
+                "5",
+                "10"
+        };
+        prefSticky = Pref.List(activity, catOptions, R.string.settings_sticky_title, 0, R.string.settings_sticky_title, settings.STICKY.name, settings.STICKY.defaultValue, sticky, sticky, true);
+
+        CharSequence[] rendererEntries = new CharSequence[Runner.RENDERER_NAMES.length];
+        CharSequence[] rendererEntryValues = new CharSequence[Runner.RENDERER_NAMES.length];
+        for (int i = 0; i < Runner.RENDERER_NAMES.length; i++) {
+            rendererEntries[i] = getString(Runner.RENDERER_DESCRIPTIONS[i]);
+            rendererEntryValues[i] = Runner.RENDERER_NAMES[i];
+        }
+        prefRenderer = Pref.List(activity, catOptions, R.string.settings_renderer_title, 0, R.string.settings_renderer_title, settings.RENDERER.name, settings.RENDERER.defaultValue, rendererEntries, rendererEntryValues, true);
         
+        Pref.Check(activity, catOptions, R.string.settings_property_timeline_title, R.string.settings_property_timeline_description, settings.PROPERTY_TIMELINE.name, settings.PROPERTY_TIMELINE.defaultValue);
+
+        Pref.Check(activity, catOptions, R.string.settings_crashes_title, R.string.settings_crashes_description, settings.CRASHES.name, settings.CRASHES.defaultValue);
+
+        Pref.Check(activity, catOptions, R.string.settings_pressure_title, R.string.settings_pressure_description, settings.PRESSURE.name, settings.PRESSURE.defaultValue);
+
         Pref.Check(activity, catOptions, R.string.settings_save_logs_title, R.string.settings_save_logs_description, settings.SAVE_LOGS.name, settings.SAVE_LOGS.defaultValue);
 
+        Pref.Check(activity, catOptions, R.string.settings_ftrace_title, R.string.settings_ftrace_description, settings.FTRACE.name, settings.FTRACE.defaultValue);
+
+        CharSequence[] capture = new CharSequence[] {
+                "0",
+                "1",
+                "2",
+                "5"
+        };
+        prefCapture = Pref.List(activity, catOptions, R.string.settings_capture_title, 0, R.string.settings_capture_title, settings.CAPTURE.name, settings.CAPTURE.defaultValue, capture, capture, true);
+
         PreferenceCategory catMisc = Pref.Category(activity, root, R.string.settings_category_misc);
         
         Preference prefTestRun = Pref.Preference(activity, catMisc, R.string.settings_test_title, R.string.settings_test_description, true, new OnPreferenceClickListener() {
@@ -774,13 +820,57 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
                 ));
             }
         }
+
+        if ((key == null) || key.equals(settings.STICKY.name)) {
+            if (prefSticky != null) {
+                prefSticky.setSummary(String.format(Locale.ENGLISH, "%s\n[ %s ]",
+                        getString(R.string.settings_sticky_description),
+                        settings.STICKY.get()
+                ));
+            }
+        }
+
+        if ((key == null) || key.equals(settings.CAPTURE.name)) {
+            if (prefCapture != null) {
+                prefCapture.setSummary(String.format(Locale.ENGLISH, "%s\n[ %s ]",
+                        getString(R.string.settings_capture_description),
+                        settings.CAPTURE.get()
+                ));
+            }
+        }
+
+        if ((key == null) || key.equals(settings.RENDERER.name)) {
+            if (prefRenderer != null) {
+                String display = null;
+                String value = settings.RENDERER.get();
+                for (int i = 0; i < Runner.RENDERER_NAMES.length; i++) {
+                    if (Runner.RENDERER_NAMES[i].equals(value)) {
+                        display = getString(Runner.RENDERER_DESCRIPTIONS[i]);
+                        break;
+                    }
+                }
+                prefRenderer.setSummary(String.format(Locale.ENGLISH, "%s\n[ %s ]",
+                        getString(R.string.settings_renderer_description),
+                        display
+                ));
+            }
+        }
+
+        if ((key == null) || key.equals(settings.LAST_KMSG.name)) {
+            if (prefLastKmsg != null) {
+                prefLastKmsg.setSummary(String.format(Locale.ENGLISH, "%s\n[ %s ]",
+                        getString(R.string.settings_last_kmsg_description),
+                        settings.LAST_KMSG.get()
+                ));
+            }
+        }
         
         if (key != null) {
             if (activity != null) {
                 (new Thread(new Runnable() {                
                     @Override
                     public void run() {
-                        Installer.installData(activity);                    
+                        Installer.installProfiles(activity);
                     }
                 })).start();
             }
@@ -0,0 +1,237 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class AtlasTextRenderer implements TextRenderer {
+    // Renders a ScreenBuilder's models from a monospace glyph atlas that is rasterized once. The
+    // whole area is a single vertex buffer of textured quads with per-vertex color (see TextGrid),
+    // drawn with one call; a new line only rewrites the vertices of its own row.
+
+    private static final String VERTEX_SHADER =
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTexCoord;\n" +
+            "attribute vec4 aColor;\n" +
+            "uniform vec4 uGrid;\n" + // rows, head, cell width, cell height
+            "uniform vec2 uSize;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "varying vec4 vColor;\n" +
+            "void main() {\n" +
+            "    float row = mod(aPosition.z - uGrid.y + uGrid.x, uGrid.x);\n" +
+            "    vec2 pixel = vec2(aPosition.x * uGrid.z, (row + aPosition.y) * uGrid.w);\n" +
+            "    gl_Position = vec4(pixel.x * 2.0 / uSize.x - 1.0, 1.0 - pixel.y * 2.0 / uSize.y, 0.0, 1.0);\n" +
+            "    vTexCoord = aTexCoord;\n" +
+            "    vColor = aColor;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "uniform sampler2D uAtlas;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "varying vec4 vColor;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = vec4(vColor.rgb, vColor.a * texture2D(uAtlas, vTexCoord).a);\n" +
+            "}\n";
+
+    private final ScreenBuilder mScreen;
+    private final TextGrid mGrid;
+    private final GlyphBake mPrebaked;
+    private GlyphTexture mGlyphs = null;
+    private GlyphAtlas mAtlas = null;
+    private ByteBuffer mVertices = null;
+    private int[] mRanges = null;
+    private int mWidth;
+    private int mHeight;
+    private int mLineHeight = 0;
+
+    private int mProgram = 0;
+    private int mBuffer = 0;
+    private int mPosition;
+    private int mTexCoord;
+    private int mColor;
+    private int mGridUniform;
+    private int mSizeUniform;
+    private int mAtlasUniform;
+
+    public AtlasTextRenderer(ScreenBuilder screen, GlyphBake prebaked, int width, int height, int lineHeight) {
+        // prebaked may be null, it is only used if made for this line height
+        mScreen = screen;
+        mPrebaked = prebaked;
+        mGrid = new TextGrid(1, 1);
+
+        mProgram = ShaderProgram.create(VERTEX_SHADER, FRAGMENT_SHADER);
+        mPosition = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTexCoord = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+        mColor = GLES20.glGetAttribLocation(mProgram, "aColor");
+        mGridUniform = GLES20.glGetUniformLocation(mProgram, "uGrid");
+        mSizeUniform = GLES20.glGetUniformLocation(mProgram, "uSize");
+        mAtlasUniform = GLES20.glGetUniformLocation(mProgram, "uAtlas");
+
+        int[] ids = new int[1];
+        GLES20.glGenBuffers(1, ids, 0);
+        mBuffer = ids[0];
+
+        setup(width, height, lineHeight);
+    }
+
+    protected boolean isValid() {
+        return mProgram != 0;
+    }
+
+    protected ScreenBuilder getScreen() {
+        return mScreen;
+    }
+
+    protected TextGrid getGrid() {
+        return mGrid;
+    }
+
+    protected GlyphAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    protected int getWidth() {
+        return mWidth;
+    }
+
+    protected int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void resize(int width, int height, int lineHeight) {
+        setup(width, height, lineHeight);
+    }
+
+    private void setup(int width, int height, int lineHeight) {
+        mWidth = width;
+        mHeight = height;
+        if (lineHeight != mLineHeight) {
+            mLineHeight = lineHeight;
+            if (mGlyphs != null) mGlyphs.destroy();
+            if ((mPrebaked != null) && (mPrebaked.getAtlas().getCellHeight() == lineHeight)) {
+                mGlyphs = new GlyphTexture(mPrebaked);
+            } else {
+                mGlyphs = new GlyphTexture(lineHeight);
+            }
+            mAtlas = mGlyphs.getAtlas();
+        }
+        mScreen.resize(height / lineHeight, width / mAtlas.getCellWidth());
+        mGrid.reset(height / lineHeight, width / mAtlas.getCellWidth());
+
+        int size = mGrid.getVertexBufferSize();
+        if ((mVertices == null) || (mVertices.capacity() != size)) {
+            mVertices = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        } else {
+            mVertices.clear();
+            mVertices.put(new byte[size]);
+            mVertices.position(0);
+        }
+        if ((mRanges == null) || (mRanges.length != mGrid.getRows() * 2)) {
+            mRanges = new int[mGrid.getRows() * 2];
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, size, mVertices, GLES20.GL_DYNAMIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    @Override
+    public void draw() {
+        ScreenModel model = mScreen.get();
+        if (!isValid() || !mGrid.matches(model)) return;
+        upload(model, mRanges);
+        beginGlyphs(model.getHead(), mWidth, mHeight);
+        drawGlyphs(0, mGrid.getVertexBufferSize() / TextGrid.VERTEX_SIZE);
+        endGlyphs();
+    }
+
+    protected int upload(ScreenModel model, int[] ranges) {
+        // uploads the rows changed since the last call, returns their (offset, size) byte ranges
+        int count = mGrid.collect(model, mVertices, mAtlas, ranges);
+        mGlyphs.update();
+        if (count > 0) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+            for (int i = 0; i < count; i++) {
+                mVertices.position(ranges[i * 2]);
+                GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, ranges[i * 2], ranges[i * 2 + 1], mVertices);
+            }
+            mVertices.position(0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+        return count;
+    }
+
+    protected void beginGlyphs(int head, int width, int height) {
+        // slot head is drawn at the top of a width x height area
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mGlyphs.getTexture());
+        GLES20.glUniform1i(mAtlasUniform, 0);
+        GLES20.glUniform4f(mGridUniform, mGrid.getRows(), head, mAtlas.getCellWidth(), mAtlas.getCellHeight());
+        GLES20.glUniform2f(mSizeUniform, width, height);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+        GLES20.glEnableVertexAttribArray(mPosition);
+        GLES20.glEnableVertexAttribArray(mTexCoord);
+        GLES20.glEnableVertexAttribArray(mColor);
+        GLES20.glVertexAttribPointer(mPosition, 3, GLES20.GL_SHORT, false, TextGrid.VERTEX_SIZE, 0);
+        GLES20.glVertexAttribPointer(mTexCoord, 2, GLES20.GL_UNSIGNED_SHORT, true, TextGrid.VERTEX_SIZE, 8);
+        GLES20.glVertexAttribPointer(mColor, 4, GLES20.GL_UNSIGNED_BYTE, true, TextGrid.VERTEX_SIZE, 12);
+    }
+
+    protected void drawGlyphs(int first, int count) {
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, first, count);
+    }
+
+    protected void endGlyphs() {
+        GLES20.glDisableVertexAttribArray(mPosition);
+        GLES20.glDisableVertexAttribArray(mTexCoord);
+        GLES20.glDisableVertexAttribArray(mColor);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    @Override
+    public String getStats() {
+        GlyphAtlas atlas = mAtlas;
+        return (atlas != null) ? atlas.getStats() : null;
+    }
+
+    @Override
+    public void destroy() {
+        int[] ids = new int[1];
+        if (mBuffer != 0) {
+            ids[0] = mBuffer;
+            GLES20.glDeleteBuffers(1, ids, 0);
+            mBuffer = 0;
+        }
+        if (mGlyphs != null) {
+            mGlyphs.destroy();
+            mGlyphs = null;
+        }
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+    }
+}
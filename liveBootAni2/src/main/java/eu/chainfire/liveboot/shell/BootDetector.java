@@ -0,0 +1,228 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import eu.chainfire.librootjava.Logger;
+
+public class BootDetector {
+    // Wakes up the main loop when something it is waiting for may have happened, instead of it
+    // checking everything every 64ms (with a few ps | grep shells thrown in). In between, the
+    // main loop sleeps until its next time-based check is due.
+    //
+    // - properties: a thread blocks on the global property serial in libliveboot
+    //   (__system_property_wait); without it, the mapped serial is read every FALLBACK_POLL
+    // - abort file: inotify on its directory
+    // - boot animation: init.svc.bootanim. Until that has been seen running, a manually started
+    //   bootanimation is looked for through ProcessScanner every SCAN_INTERVAL ms; once found, a
+    //   thread blocks on a pidfd for it (Linux 5.3+), or /proc/<pid> is checked at that interval
+
+    private static final long FALLBACK_POLL = 128L * 1000L * 1000L;
+    private static final long SCAN_INTERVAL = 250;
+    private static final int WATCH_TIMEOUT = 1000;
+
+    private final PropertyReader mProperties;
+    private final File mAbortFile;
+    private final ProcessScanner mScanner;
+    private FileObserver mObserver = null;
+
+    private volatile boolean mAbort = false;
+    private volatile boolean mChanged = false;
+    private volatile boolean mStopped = false;
+    private volatile boolean mWatchingProperties = false;
+    private volatile boolean mWatchingProcess = false;
+    private volatile Thread mWaiter = null;
+    private int mSerial;
+
+    private boolean mBootAnimationProperty = false;
+    private int mBootAnimationPid = 0;
+    private long mLastScan = 0;
+
+    public BootDetector(PropertyReader properties, ProcessScanner scanner, File abortFile) {
+        mProperties = properties;
+        mScanner = scanner;
+        mAbortFile = abortFile;
+        mSerial = properties.getSerial();
+    }
+
+    @SuppressWarnings("deprecation")
+    public void start() {
+        // path constructor, as in CrashWatcher.watch()
+        final String name = mAbortFile.getName();
+        mObserver = new FileObserver(mAbortFile.getParent(), FileObserver.CREATE | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (name.equals(path)) {
+                    mAbort = true;
+                    wake();
+                }
+            }
+        };
+        mObserver.startWatching();
+        if (mAbortFile.exists()) mAbort = true;
+
+        if (NativeWait.isLoaded() && (NativeWait.propertySerial() >= 0)) {
+            mWatchingProperties = true;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watchProperties();
+                }
+            }, "LiveBoot properties");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Logger.dp("DETECTOR", "properties %s", mWatchingProperties ? "waited on" : "polled");
+    }
+
+    public void stop() {
+        mStopped = true;
+        if (mObserver != null) {
+            mObserver.stopWatching();
+            mObserver = null;
+        }
+    }
+
+    public boolean isAbortRequested() {
+        return mAbort;
+    }
+
+    private void wake() {
+        Thread waiter = mWaiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    private void watchProperties() {
+        // before Android 8 there's no timeout, the thread then stays blocked until the next
+        // property change after stop()
+        long serial = NativeWait.propertySerial();
+        while (!mStopped) {
+            long next = NativeWait.propertyWait(serial, WATCH_TIMEOUT);
+            if (next < 0) {
+                mWatchingProperties = false;
+                wake();
+                return;
+            }
+            if (next != serial) {
+                serial = next;
+                mChanged = true;
+                wake();
+            }
+        }
+    }
+
+    private void watchProcess(final int pid) {
+        if (!NativeWait.isLoaded()) return;
+        final int fd = NativeWait.pidfdOpen(pid);
+        if (fd < 0) {
+            Logger.dp("DETECTOR", "pidfd %d: %d", pid, fd);
+            return;
+        }
+        mWatchingProcess = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!mStopped) {
+                        if (NativeWait.pidfdWait(fd, WATCH_TIMEOUT) != 0) break;
+                    }
+                } finally {
+                    // exited, or we can't tell anymore; either way the main loop has a look
+                    NativeWait.close(fd);
+                    mWatchingProcess = false;
+                    mChanged = true;
+                    wake();
+                }
+            }
+        }, "LiveBoot bootanim");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean await(long timeoutMs, boolean tracking) {
+        // returns true if properties (may have) changed, the bootanimation exited or abort was
+        // requested, false on timeout; timeoutMs < 0 has no timeout. If tracking, the caller
+        // checks isBootAnimationRunning() after waking up, so we come back in time for the next
+        // scan unless we'll hear about the bootanimation anyway
+        long now = System.nanoTime();
+        long deadline = (timeoutMs < 0) ? Long.MAX_VALUE : now + timeoutMs * 1000000L;
+        if (tracking && !mBootAnimationProperty && !mWatchingProcess) {
+            deadline = Math.min(deadline, now + SCAN_INTERVAL * 1000000L);
+        }
+        mWaiter = Thread.currentThread();
+        try {
+            while (true) {
+                if (mAbort) return true;
+                if (mChanged) {
+                    mChanged = false;
+                    return true;
+                }
+                boolean poll = !mWatchingProperties;
+                if (poll && mProperties.isMapped()) {
+                    int serial = mProperties.getSerial();
+                    if (serial != mSerial) {
+                        mSerial = serial;
+                        return true;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                if (!poll) {
+                    LockSupport.parkNanos(this, remaining);
+                } else if (mProperties.isMapped()) {
+                    LockSupport.parkNanos(this, Math.min(remaining, FALLBACK_POLL));
+                } else {
+                    // no serial to look at, let the caller read the properties again
+                    LockSupport.parkNanos(this, Math.min(remaining, FALLBACK_POLL));
+                    return true;
+                }
+            }
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    public boolean isBootAnimationRunning() {
+        if (mProperties.get("init.svc.bootanim", "stopped").equals("running")) {
+            mBootAnimationProperty = true;
+            return true;
+        }
+
+        if (mBootAnimationPid != 0) {
+            if (mScanner.isAlive(mBootAnimationPid, "bootanim")) return true;
+            Logger.dp("DETECTOR", "bootanimation %d gone", mBootAnimationPid);
+            mBootAnimationPid = 0;
+        }
+
+        // init tells us when it stops, no need to look for a manually started one
+        if (mBootAnimationProperty) return false;
+
+        long now = System.currentTimeMillis();
+        if (now - mLastScan >= SCAN_INTERVAL) {
+            mLastScan = now;
+            List<Integer> pids = mScanner.findByName("bootanim");
+            mBootAnimationPid = (pids.size() > 0) ? pids.get(0) : 0;
+            if (mBootAnimationPid != 0) watchProcess(mBootAnimationPid);
+        }
+        return mBootAnimationPid != 0;
+    }
+}
@@ -0,0 +1,110 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.chainfire.librootjava.Logger;
+
+public class BootProfile {
+    // Boot options compiled by the app, so the launch script only has to point at this file and
+    // doesn't need to be regenerated when settings change. The options are the same strings
+    // Runner accepts as arguments.
+    //
+    // Format (little endian): u32 magic, u32 version, u32 count, count * (u16 length, UTF-8 bytes)
+
+    private static final int MAGIC = 0x4650424c; // "LBPF"
+    private static final int VERSION = 1;
+    private static final int MAX_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static boolean write(File file, List<String> options) {
+        int size = 12;
+        byte[][] encoded = new byte[options.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = options.get(i).getBytes(UTF8);
+            size += 2 + encoded[i].length;
+        }
+        if (size > MAX_SIZE) return false;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(encoded.length);
+        for (byte[] option : encoded) {
+            buffer.putShort((short)option.length);
+            buffer.put(option);
+        }
+
+        // replaced atomically, the boot process may be reading it (test run)
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            FileOutputStream os = new FileOutputStream(temp, false);
+            try {
+                os.write(buffer.array());
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            if (temp.renameTo(file)) return true;
+        } catch (Exception e) {
+            Logger.ex(e);
+        }
+        temp.delete();
+        return false;
+    }
+
+    public static List<String> read(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                if ((length < 12) || (length > MAX_SIZE)) return null;
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) return null;
+                int count = buffer.getInt();
+                if ((count < 0) || (count > (length - 12) / 2)) return null;
+
+                List<String> ret = new ArrayList<String>(count);
+                byte[] bytes = new byte[256];
+                for (int i = 0; i < count; i++) {
+                    int len = buffer.getShort() & 0xFFFF;
+                    if (len > buffer.remaining()) return null;
+                    if (len > bytes.length) bytes = new byte[len];
+                    buffer.get(bytes, 0, len);
+                    ret.add(new String(bytes, 0, len, UTF8));
+                }
+                return ret;
+            } finally {
+                raf.close();
+            }
+        } catch (Exception e) {
+            Logger.ex(e);
+        }
+        return null;
+    }
+}
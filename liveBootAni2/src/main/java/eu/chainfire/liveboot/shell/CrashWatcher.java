@@ -0,0 +1,294 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.graphics.Color;
+import android.os.FileObserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import eu.chainfire.librootjava.Logger;
+
+public class CrashWatcher extends LogSource {
+    // Shows a one-row summary for every tombstone or ANR trace written during boot. The
+    // directories are watched with inotify (FileObserver), never listed, and of each new file only
+    // the header is read: the reader stops as soon as the process, signal/subject, abort message
+    // and top frames are known. /data may not be mounted (or decrypted) yet when we start, until
+    // it is, only the existence of the directories is checked once a second.
+
+    private static final int COLOR = Color.RED;
+    private static final int FRAMES = 2;
+    private static final int MAX_HEADER_LINES = 256;
+
+    private static final String TOMBSTONES = "data/tombstones";
+    private static final String ANR = "data/anr";
+
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.CREATE;
+
+    private final File mRoot;
+    private final List<FileObserver> mObservers = new ArrayList<FileObserver>();
+    private final HashMap<String, String> mSeen = new HashMap<String, String>(); // name -> pid
+    private volatile boolean mStopped = false;
+
+    public CrashWatcher(OnLineListener onLineListener, Pipeline pipeline) {
+        this(onLineListener, pipeline, new File("/"));
+    }
+
+    public CrashWatcher(OnLineListener onLineListener, Pipeline pipeline, File root) {
+        super("crashes", onLineListener, pipeline, 32, true);
+        mRoot = root;
+    }
+
+    @Override
+    protected void onStart() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                File tombstones = new File(mRoot, TOMBSTONES);
+                File anr = new File(mRoot, ANR);
+                boolean watchingTombstones = false;
+                boolean watchingAnr = false;
+                while (!mStopped && !(watchingTombstones && watchingAnr)) {
+                    if (!watchingTombstones && tombstones.isDirectory()) {
+                        watch(tombstones, true);
+                        watchingTombstones = true;
+                    }
+                    if (!watchingAnr && anr.isDirectory()) {
+                        watch(anr, false);
+                        watchingAnr = true;
+                    }
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "LiveBoot crashes");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    protected void onStop() {
+        mStopped = true;
+        synchronized (mObservers) {
+            for (FileObserver observer : mObservers) {
+                observer.stopWatching();
+            }
+            mObservers.clear();
+        }
+    }
+
+    @Override
+    public boolean onParse(LineRecord record) {
+        record.priority = true;
+        return true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void watch(final File directory, final boolean tombstone) {
+        // FileObserver(File, int) needs API 29, we still run on 21
+        Logger.dp("CRASHES", "watching %s", directory.getAbsolutePath());
+        FileObserver observer = new FileObserver(directory.getAbsolutePath(), EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (path == null) return;
+                try {
+                    onFile(new File(directory, path), tombstone);
+                } catch (Exception e) {
+                    Logger.ex(e);
+                }
+            }
+        };
+        synchronized (mObservers) {
+            if (mStopped) return;
+            mObservers.add(observer);
+            observer.startWatching();
+        }
+    }
+
+    private synchronized void onFile(File file, boolean tombstone) throws Exception {
+        // FileObserver thread. Tombstones may be linked in complete (CREATE) or written in place
+        // (CREATE, then CLOSE_WRITE), so a file can be seen more than once; it is summarized
+        // once per name and pid, names are reused once they rotate.
+        String name = file.getName();
+        if (name.endsWith(".pb") || name.endsWith(".tmp")) return;
+        if (file.length() == 0) return;
+
+        String[] crash = tombstone ? parseTombstone(file) : parseAnr(file);
+        if (crash == null) return; // incomplete, wait for CLOSE_WRITE
+        String pid = (crash[0] != null) ? crash[0] : "";
+        if (pid.equals(mSeen.get(name))) return;
+        mSeen.put(name, pid);
+
+        String summary = crash[1];
+        log(summary);
+        offer(summary, COLOR);
+        flush();
+    }
+
+    private static String quoted(String value) {
+        // 'foo' --> foo
+        value = value.trim();
+        if ((value.length() >= 2) && value.startsWith("'") && value.endsWith("'")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private String[] parseTombstone(File file) throws Exception {
+        // returns { pid, summary }
+        // pid: 1234, tid: 1234, name: foo  >>> /system/bin/foo <<<
+        // signal 6 (SIGABRT), code -1 (SI_QUEUE), fault addr --------
+        // Abort message: 'message'
+        // backtrace:
+        //       #00 pc 000000000004e0a4  /apex/.../libc.so (abort+164) (BuildId: ...)
+        String process = null;
+        String pid = null;
+        String signal = null;
+        String abort = null;
+        List<String> frames = new ArrayList<String>();
+        boolean backtrace = false;
+
+        BufferedReader reader = new BufferedReader(new FileReader(file), 4096);
+        try {
+            String line;
+            int lines = 0;
+            while (((line = reader.readLine()) != null) && (lines++ < MAX_HEADER_LINES)) {
+                if (backtrace) {
+                    line = line.trim();
+                    if (!line.startsWith("#")) break;
+                    frames.add(tombstoneFrame(line));
+                    if (frames.size() >= FRAMES) break;
+                } else if (line.startsWith("pid: ")) {
+                    int p = line.indexOf(',');
+                    pid = line.substring(5, p > -1 ? p : line.length());
+                    int open = line.indexOf(">>> ");
+                    int close = line.indexOf(" <<<");
+                    if ((open > -1) && (close > open)) {
+                        process = line.substring(open + 4, close);
+                    } else {
+                        int n = line.indexOf("name: ");
+                        if (n > -1) process = line.substring(n + 6).trim();
+                    }
+                } else if (line.startsWith("signal ")) {
+                    int open = line.indexOf('(');
+                    int close = line.indexOf(')');
+                    signal = ((open > -1) && (close > open)) ? line.substring(open + 1, close) : line.substring(7);
+                } else if (line.startsWith("Abort message: ")) {
+                    abort = quoted(line.substring(15));
+                } else if (line.equals("backtrace:")) {
+                    backtrace = true;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if ((process == null) || (signal == null)) return null;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Tombstone: ").append(process).append(" (").append(pid).append(") ").append(signal);
+        if (abort != null) sb.append(" '").append(abort).append("'");
+        for (int i = 0; i < frames.size(); i++) {
+            sb.append(i == 0 ? " at " : " < ").append(frames.get(i));
+        }
+        return new String[] { pid, sb.toString() };
+    }
+
+    private static String tombstoneFrame(String line) {
+        // "#00 pc 000000000004e0a4  /apex/.../libc.so (abort+164) (BuildId: ...)" --> "libc.so abort+164"
+        String[] parts = line.split(" +", 4);
+        if (parts.length < 4) return line;
+        String rest = parts[3];
+        int space = rest.indexOf(' ');
+        String library = space > -1 ? rest.substring(0, space) : rest;
+        library = library.substring(library.lastIndexOf('/') + 1);
+        int open = rest.indexOf(" (");
+        if ((open > -1) && !rest.startsWith("(BuildId", open + 1)) {
+            // symbols may contain parentheses themselves
+            int depth = 0;
+            for (int i = open + 1; i < rest.length(); i++) {
+                char c = rest.charAt(i);
+                if (c == '(') {
+                    depth++;
+                } else if ((c == ')') && (--depth == 0)) {
+                    return library + " " + rest.substring(open + 2, i);
+                }
+            }
+        }
+        return library;
+    }
+
+    private String[] parseAnr(File file) throws Exception {
+        // returns { pid, summary }
+        // Subject: Input dispatching timed out (...)
+        // ----- pid 1234 at 2024-01-02 03:04:05 -----
+        // Cmd line: com.example
+        // "main" prio=5 tid=1 Blocked
+        //   at com.example.Foo.bar(Foo.java:12)
+        String subject = null;
+        String pid = null;
+        String process = null;
+        List<String> frames = new ArrayList<String>();
+        boolean main = false;
+
+        BufferedReader reader = new BufferedReader(new FileReader(file), 4096);
+        try {
+            String line;
+            int lines = 0;
+            while (((line = reader.readLine()) != null) && (lines++ < MAX_HEADER_LINES)) {
+                if (main) {
+                    String trimmed = line.trim();
+                    if (trimmed.length() == 0) break;
+                    if (trimmed.startsWith("at ")) {
+                        String frame = trimmed.substring(3);
+                        int open = frame.indexOf('(');
+                        frames.add(open > -1 ? frame.substring(0, open) : frame);
+                        if (frames.size() >= FRAMES) break;
+                    }
+                } else if (line.startsWith("Subject: ")) {
+                    subject = line.substring(9).trim();
+                } else if (line.startsWith("----- pid ") && (pid == null)) {
+                    int end = line.indexOf(' ', 10);
+                    pid = line.substring(10, end > -1 ? end : line.length());
+                } else if (line.startsWith("Cmd line: ") && (process == null)) {
+                    process = line.substring(10).trim();
+                } else if (line.startsWith("\"main\" ")) {
+                    main = true;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (process == null) return null;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("ANR: ").append(process);
+        if (pid != null) sb.append(" (").append(pid).append(")");
+        if (subject != null) sb.append(" ").append(subject);
+        for (int i = 0; i < frames.size(); i++) {
+            sb.append(i == 0 ? " at " : " < ").append(frames.get(i));
+        }
+        return new String[] { pid, sb.toString() };
+    }
+}
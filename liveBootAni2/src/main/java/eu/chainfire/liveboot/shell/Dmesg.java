@@ -17,35 +17,27 @@
 package eu.chainfire.liveboot.shell;
 
 import android.graphics.Color;
-import android.os.Handler;
-import android.os.SystemClock;
 
 import eu.chainfire.librootjava.Logger;
 import eu.chainfire.libsuperuser.Shell;
 import eu.chainfire.libsuperuser.StreamGobbler;
 
-import java.util.LinkedList;
 import java.util.Locale;
-import java.util.concurrent.locks.ReentrantLock;
 
-public class Dmesg {
+public class Dmesg extends LogSource {
     private static final int COLOR = Color.WHITE;
+    private static final int LEVEL_ERR = 3; // syslog severity, lower 3 bits of the prefix
+    public static final int LEVEL_WARNING = 4;
 
     private volatile int mShowMin = 0;
     private volatile int mShowMax = 99;
+    private volatile int mShowSeverity = 7;
     
-    private final Shell.Interactive mShell;
-    private final OnLineListener mOnLineListener;
-    
-    private volatile long mLineLast = 0;
-    private volatile boolean mLinePassthrough = false;
-    private final LinkedList<String> mCache = new LinkedList<String>();
-    private final int mCacheSize;
-    private volatile boolean mReady = false;
-        
-    private final ReentrantLock mLock = new ReentrantLock(true);
+    private volatile Shell.Interactive mShell = null;
+
+    public Dmesg(OnLineListener onLineListener, int cacheSize, String show, Pipeline pipeline) {
+        super("dmesg", onLineListener, pipeline, cacheSize, true);
 
-    public Dmesg(OnLineListener onLineListener, int cacheSize, String show, Handler handler) {
         if (show != null) {
             int p = show.indexOf('-');
             if (p > -1) {
@@ -59,44 +51,21 @@ public class Dmesg {
                 }
             }
         }
-        
-        final Dmesg _this = this;
-        mOnLineListener = onLineListener;
-        mCacheSize = cacheSize;
+    }
+
+    @Override
+    protected void onStart() {
         mShell = (new Shell.Builder())
             .setAutoHandler(false)
-            .setHandler(handler)
             .useSH()
             .setOnSTDOUTLineListener(new StreamGobbler.OnLineListener() {
                 @Override
                 public void onLine(String line) {
-                    mOnLineListener.onLog(_this, line);
+                    log(line);
+                    if (line.length() == 0) return;
 
                     try {                        
-                        mLock.lock();
-                        try {
-                            if (!mLinePassthrough) {
-                                long now = SystemClock.uptimeMillis();
-                                if ((mLineLast > 0) && (now - mLineLast > 16)) {
-                                    if (mReady) {
-                                        mLinePassthrough = true;
-                                        processCache();
-                                    }
-                                    mLineLast = 1;
-                                } else {
-                                    mLineLast = now;
-                                }
-                            }
-                    
-                            if (mLinePassthrough) {
-                                processLine(line);
-                            } else {
-                                if (mCache.size() >= mCacheSize) mCache.pop();
-                                mCache.add(line);
-                            }
-                        } finally {
-                            mLock.unlock();
-                        }
+                        offer(line, COLOR);
                     } catch (Exception e) {
                         Logger.ex(e);
                     }
@@ -105,84 +74,81 @@ public class Dmesg {
             .setOnSTDERRLineListener(new StreamGobbler.OnLineListener() {                
                 @Override
                 public void onLine(String line) {
-                    mOnLineListener.onLog(_this, line);
+                    log(line);
                     Logger.dp("dmesg/stderr", "%s", line);
                 }
             })
             .addCommand("cat /dev/kmsg")
             .addCommand("cat /proc/kmsg")
             .open();
+        // destroy() gave up waiting for us
+        if (isStopped()) closeShell(mShell);
     }
 
-    private synchronized void processCache() {
-        for (String s : mCache) {
-            processLine(s);
-        }        
-        mCache.clear();
+    @Override
+    protected void onStop() {
+        closeShell(mShell);
     }
-    
-    private void processLine(String line) {
-        if (line.length() > 0) {
-            String processed = null;
-            
-            if (line.startsWith("<")) {
-                // /proc/kmsg
-                int p = line.indexOf('>');
-                if (p > -1) {
-                    int level = -1;
-                    try {
-                        level = Integer.valueOf(line.substring(1, p), 10);
-                    } catch (Exception e) {                        
-                    }
-                    if ((level >= mShowMin) && (level <= mShowMax)) {
-                        processed = line;
-                    }
-                }
-            } else {
-                // /dev/kmsg
-                int p = line.indexOf(';');
-                if (p > -1) {
-                    String content = line.substring(p + 1);
-                    String[] flags = line.split(",");
-                    if ((flags != null) && (flags.length >= 3)) {
-                        try {
-                            int level = Integer.valueOf(flags[0], 10);
-                            if ((level >= mShowMin) && (level <= mShowMax)) {
-                                String time = flags[2];
-                                String time1 = time.substring(0, time.length() - 6);
-                                String time2 = time.substring(time.length() - 6);
-                                processed = String.format(Locale.ENGLISH, "<%d>[%s.%6s] %s", level, time1, time2, content);
-                            }
-                        } catch (NumberFormatException e) {                                        
-                        }
-                    }                                
+
+    @Override
+    protected boolean isPriority(String line) {
+        // "<3>..." (/proc/kmsg) or "3,..." (/dev/kmsg), without parsing the rest
+        int start = line.startsWith("<") ? 1 : 0;
+        int level = 0;
+        int i = start;
+        while ((i < line.length()) && (line.charAt(i) >= '0') && (line.charAt(i) <= '9')) {
+            level = (level * 10) + (line.charAt(i) - '0');
+            i++;
+        }
+        if ((i == start) || (i == line.length()) || (line.charAt(i) != (start == 1 ? '>' : ','))) return false;
+        return (level & 7) <= LEVEL_ERR;
+    }
+
+    @Override
+    public boolean onParse(LineRecord record) {
+        String line = record.text;
+        if (line.startsWith("<")) {
+            // /proc/kmsg
+            int p = line.indexOf('>');
+            if (p > -1) {
+                try {
+                    record.level = Integer.valueOf(line.substring(1, p), 10);
+                    record.priority = ((record.level & 7) <= LEVEL_ERR);
+                    return true;
+                } catch (Exception e) {                        
                 }
             }
-            
-            if (processed != null) {
-                mOnLineListener.onLine(this, processed, COLOR);
+        } else {
+            // /dev/kmsg
+            int p = line.indexOf(';');
+            if (p > -1) {
+                String content = line.substring(p + 1);
+                String[] flags = line.split(",");
+                if ((flags != null) && (flags.length >= 3)) {
+                    try {
+                        int level = Integer.valueOf(flags[0], 10);
+                        String time = flags[2];
+                        String time1 = time.substring(0, time.length() - 6);
+                        String time2 = time.substring(time.length() - 6);
+                        record.level = level;
+                        record.priority = ((level & 7) <= LEVEL_ERR);
+                        record.text = String.format(Locale.ENGLISH, "<%d>[%s.%6s] %s", level, time1, time2, content);
+                        return true;
+                    } catch (NumberFormatException e) {                                        
+                    }
+                }                                
             }
         }
+        return false;
     }
-    
-    public void setReady() {
-        mLock.lock();
-        try {
-            mReady = true;
-            processCache();
-        } finally {
-            mLock.unlock();
-        }
+
+    @Override
+    public boolean onFilter(LineRecord record) {
+        return (record.level >= mShowMin) && (record.level <= mShowMax) && ((record.level & 7) <= mShowSeverity);
     }
 
-    public void destroy() {
-        final Shell.Interactive shell = mShell;
-        (new Thread(new Runnable() {            
-             @Override
-             public void run() {
-                 shell.kill();
-                 shell.close();
-             }
-        })).start();
+    public void setSeverity(int severity) {
+        // only show messages at or above this syslog severity (lower is more severe)
+        mShowSeverity = severity;
     }
 }
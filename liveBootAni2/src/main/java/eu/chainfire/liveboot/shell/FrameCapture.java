@@ -0,0 +1,282 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.os.Process;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import eu.chainfire.librootjava.Logger;
+
+public class FrameCapture {
+    // Records what is on screen at a low frame rate, on a background thread, so the render
+    // thread is never involved and can't be stalled by readbacks. Frames are not stored as
+    // pixels of the whole screen, but per text area as the slots of the ScreenModel row ring:
+    // a frame holds the head offset, and only the slots whose serial changed since the previous
+    // frame, each rendered on its own as a band of lineHeight rows with a SoftwareRasterizer. A
+    // new line usually costs a single band, a scroll is just the head offset.
+    //
+    // Format (big endian): u32 magic, u32 version, u32 width, u32 height, u32 line height,
+    // u32 background (ARGB), u32 area count, per area u32 y, u32 height; then per frame:
+    // u32 milliseconds since start, u32 length, length bytes deflated of, per area:
+    // u32 rows, u32 head, u32 count, count times { u32 slot, width * line height ARGB ints }.
+    // Slots not written yet are background. On screen, row r of an area shows slot
+    // (head + r) % rows at y + r * line height, for every row that fits the area's height.
+    //
+    // When the surface is resized, a record with length 0xFFFFFFFF follows the milliseconds,
+    // then u32 width, u32 height, u32 line height, u32 area count, per area u32 y, u32 height.
+    // All slots of all areas start over as background, the next frame writes every one of them.
+
+    private static final int MAGIC = 0x4c424643; // "LBFC"
+    private static final int VERSION = 3;
+    private static final int RESIZED = -1;
+
+    private static class Area {
+        public final ScreenBuilder screen;
+        public final int y;
+        public final int height;
+        public long serial = 0;
+        public long[] slotSerial = new long[0];
+
+        public Area(ScreenBuilder screen, int y, int height) {
+            this.screen = screen;
+            this.y = y;
+            this.height = height;
+        }
+    }
+
+    private final ScreenBuilder mScreen;
+    private final ScreenBuilder mSticky;
+    private final GlyphBake mPrebaked;
+    private final int mBackground;
+    private final int mInterval;
+    private final String mFilename;
+
+    private volatile boolean mStopped = false;
+    private Thread mThread = null;
+    private final AtomicReference<int[]> mResize = new AtomicReference<int[]>();
+
+    // capture thread only, after construction
+    private Area[] mAreas;
+    private int mWidth;
+    private int mHeight;
+    private int mLineHeight;
+
+    private SoftwareRasterizer mRasterizer = null;
+    private int[] mBand = null;
+    private byte[] mBandBytes = null;
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(64 * 1024);
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+    private long mFrames = 0;
+    private long mBands = 0;
+    private long mBytes = 0;
+
+    public FrameCapture(ScreenBuilder screen, ScreenBuilder sticky, int width, int height, int stickyHeight, int lineHeight, GlyphBake prebaked, int background, int fps, String filename) {
+        // sticky may be null, it is drawn in the top stickyHeight pixels; prebaked may be null
+        mScreen = screen;
+        mSticky = sticky;
+        setGeometry(width, height, stickyHeight, lineHeight);
+        mPrebaked = prebaked;
+        mBackground = background;
+        mInterval = 1000 / Math.max(1, fps);
+        mFilename = filename;
+    }
+
+    private void setGeometry(int width, int height, int stickyHeight, int lineHeight) {
+        mWidth = Math.max(1, width);
+        mHeight = Math.max(1, height);
+        if ((mSticky != null) && (stickyHeight > 0)) {
+            mAreas = new Area[] { new Area(mSticky, 0, stickyHeight), new Area(mScreen, stickyHeight, mHeight - stickyHeight) };
+        } else {
+            mAreas = new Area[] { new Area(mScreen, 0, mHeight) };
+        }
+        mLineHeight = Math.max(1, lineHeight);
+    }
+
+    public void resize(int width, int height, int stickyHeight, int lineHeight) {
+        // any thread; picked up before the next frame
+        mResize.set(new int[] { width, height, stickyHeight, lineHeight });
+    }
+
+    public void start() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    capture();
+                } catch (Exception e) {
+                    Logger.ex(e);
+                } finally {
+                    mDeflater.end();
+                }
+            }
+        }, "LiveBoot capture");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public void stop() {
+        // waits for the last frame to be written, as we may be killed right after
+        mStopped = true;
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "capture: %d frames, %d rows, %d KB", mFrames, mBands, mBytes / 1024);
+    }
+
+    void prepare() {
+        // the rasterizer doesn't resize the builders, that's up to the renderer
+        GlyphBake bake = ((mPrebaked != null) && (mPrebaked.getAtlas().getCellHeight() == mLineHeight)) ? mPrebaked : GlyphBake.render(mLineHeight);
+        mRasterizer = new SoftwareRasterizer(bake.getAtlas(), bake.getPixels(), mWidth, mLineHeight);
+        mBand = new int[mWidth * mLineHeight];
+        mBandBytes = new byte[mBand.length * 4];
+    }
+
+    void writeHeader(DataOutputStream os) throws IOException {
+        os.writeInt(MAGIC);
+        os.writeInt(VERSION);
+        os.writeInt(mWidth);
+        os.writeInt(mHeight);
+        os.writeInt(mLineHeight);
+        os.writeInt(mBackground);
+        writeAreas(os);
+    }
+
+    private void writeAreas(DataOutputStream os) throws IOException {
+        os.writeInt(mAreas.length);
+        for (Area area : mAreas) {
+            os.writeInt(area.y);
+            os.writeInt(area.height);
+        }
+    }
+
+    private void writeResize(DataOutputStream os, int ms, int[] resize) throws IOException {
+        int width = mWidth;
+        int lineHeight = mLineHeight;
+        setGeometry(resize[0], resize[1], resize[2], resize[3]);
+        if ((mWidth != width) || (mLineHeight != lineHeight)) prepare();
+        os.writeInt(ms);
+        os.writeInt(RESIZED);
+        os.writeInt(mWidth);
+        os.writeInt(mHeight);
+        os.writeInt(mLineHeight);
+        writeAreas(os);
+    }
+
+    boolean writeFrame(DataOutputStream os, int ms) throws IOException {
+        // returns false if no area changed since the previous frame
+        int[] resize = mResize.getAndSet(null);
+        if (resize != null) writeResize(os, ms, resize);
+
+        ScreenModel[] models = new ScreenModel[mAreas.length];
+        boolean changed = false;
+        for (int i = 0; i < mAreas.length; i++) {
+            models[i] = mAreas[i].screen.get();
+            changed |= (models[i].getSerial() != mAreas[i].serial);
+        }
+        if (!changed && (resize == null)) return false;
+
+        mRecord.reset();
+        mDeflater.reset();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(mRecord, mDeflater, 4096);
+        DataOutputStream out = new DataOutputStream(deflater);
+        for (int i = 0; i < mAreas.length; i++) {
+            writeArea(out, mAreas[i], models[i]);
+        }
+        out.flush();
+        deflater.finish();
+
+        os.writeInt(ms);
+        os.writeInt(mRecord.size());
+        mRecord.writeTo(os);
+        mFrames++;
+        mBytes += 8 + mRecord.size();
+        return true;
+    }
+
+    private void writeArea(DataOutputStream out, Area area, ScreenModel model) throws IOException {
+        int rows = model.getRows();
+        if (area.slotSerial.length != rows) area.slotSerial = new long[rows];
+        int count = 0;
+        for (int slot = 0; slot < rows; slot++) {
+            if (model.getSerial(slot) != area.slotSerial[slot]) count++;
+        }
+        out.writeInt(rows);
+        out.writeInt(model.getHead());
+        out.writeInt(count);
+        for (int slot = 0; slot < rows; slot++) {
+            if (model.getSerial(slot) == area.slotSerial[slot]) continue;
+            area.slotSerial[slot] = model.getSerial(slot);
+            mRasterizer.renderRow(model, slot, mBackground, mBand);
+            for (int i = 0, j = 0; i < mBand.length; i++, j += 4) {
+                int p = mBand[i];
+                mBandBytes[j] = (byte)(p >> 24);
+                mBandBytes[j + 1] = (byte)(p >> 16);
+                mBandBytes[j + 2] = (byte)(p >> 8);
+                mBandBytes[j + 3] = (byte)p;
+            }
+            out.writeInt(slot);
+            out.write(mBandBytes);
+            mBands++;
+        }
+        area.serial = model.getSerial();
+    }
+
+    private void capture() throws Exception {
+        prepare();
+        long start = System.currentTimeMillis();
+
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFilename, false), 64 * 1024));
+        try {
+            writeHeader(os);
+            os.flush();
+
+            while (true) {
+                // once more after stop, for the final state
+                boolean last = mStopped;
+                if (writeFrame(os, (int)(System.currentTimeMillis() - start))) os.flush();
+                if (last) break;
+                try {
+                    Thread.sleep(mInterval);
+                } catch (InterruptedException e) {
+                    // stopping
+                }
+            }
+        } finally {
+            os.close();
+        }
+    }
+}
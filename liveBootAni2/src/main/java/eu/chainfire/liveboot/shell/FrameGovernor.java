@@ -0,0 +1,101 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.util.Locale;
+
+public class FrameGovernor {
+    // Paces the render thread. libcfsurface swaps after every onGLRenderFrame(), so frames are
+    // suppressed by not returning from await() until there is something new to show: the model
+    // was invalidated, or an animation is running. Frames are capped at maxFps even then, and
+    // when idle no frames are produced at all. release() lets everything through, for shutdown.
+    //
+    // Skipped frames are estimated against a display refreshing at 60Hz.
+
+    private static final long REFRESH_INTERVAL = 1000000000L / 60L;
+
+    private final long mInterval;
+    private boolean mDirty = true;
+    private boolean mAnimating = false;
+    private boolean mReleased = false;
+    private long mLastFrame = 0;
+
+    private long mStatRendered = 0;
+    private long mStatSkipped = 0;
+    private long mStatCoalesced = 0;
+
+    public FrameGovernor(int maxFps) {
+        mInterval = 1000000000L / maxFps;
+    }
+
+    public synchronized void invalidate() {
+        if (mDirty) {
+            mStatCoalesced++;
+            return;
+        }
+        mDirty = true;
+        notifyAll();
+    }
+
+    public synchronized void setAnimating(boolean animating) {
+        mAnimating = animating;
+        notifyAll();
+    }
+
+    public synchronized void release() {
+        mReleased = true;
+        notifyAll();
+    }
+
+    public synchronized void await() {
+        // render thread only, returns when the next frame should be drawn
+        long now = System.nanoTime();
+        while (!mReleased) {
+            if (mDirty || mAnimating) {
+                long wait = mLastFrame + mInterval - now;
+                if ((mLastFrame == 0) || (wait <= 0)) break;
+                waitNanos(wait);
+            } else {
+                waitNanos(0);
+            }
+            now = System.nanoTime();
+        }
+        if (mLastFrame > 0) {
+            mStatSkipped += Math.max(0, ((now - mLastFrame) / REFRESH_INTERVAL) - 1);
+        }
+        mLastFrame = now;
+        mDirty = false;
+        mStatRendered++;
+    }
+
+    private void waitNanos(long nanos) {
+        try {
+            if (nanos > 0) {
+                wait(nanos / 1000000L, (int)(nanos % 1000000L));
+            } else {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            mReleased = true;
+        }
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.ENGLISH, "frames: %d rendered, ~%d skipped, %d updates coalesced",
+                mStatRendered, mStatSkipped, mStatCoalesced);
+    }
+}
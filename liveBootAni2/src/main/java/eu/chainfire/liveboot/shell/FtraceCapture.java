@@ -0,0 +1,363 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.graphics.Color;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import eu.chainfire.librootjava.Logger;
+
+public class FtraceCapture extends LogSource {
+    // Enables a handful of scheduler and block layer trace events, and spools the raw per-CPU
+    // ring buffer pages from trace_pipe_raw to a binary file, for offline analysis. The pages are
+    // not decoded, beyond counting the events in them for the on-screen rate. That is a status
+    // line, updated in place every REPORT_INTERVAL rather than scrolling the log.
+    //
+    // To keep from distorting the boot we're measuring, the drain thread runs at background
+    // priority, wakes up every DRAIN_INTERVAL ms and reads at most MAX_PAGES pages per CPU per
+    // wakeup. If that isn't enough the kernel overwrites/drops the oldest data, which is flagged
+    // in the page headers and reported as lost.
+    //
+    // File format (big endian): "LBFT", int version, int page size, int cpus, then records:
+    //   'F' utf name, int length, bytes   - format description (header_page, event formats)
+    //   'P' short cpu, int length, bytes  - raw ring buffer page
+
+    private static final int COLOR = Color.LTGRAY;
+
+    private static final String[] TRACEFS = new String[] { "sys/kernel/tracing", "sys/kernel/debug/tracing" };
+    private static final String[] EVENTS = new String[] {
+            "sched/sched_switch",
+            "sched/sched_wakeup",
+            "sched/sched_process_exec",
+            "block/block_rq_issue",
+            "block/block_rq_complete"
+    };
+
+    private static final int VERSION = 1;
+    private static final long DRAIN_INTERVAL = 200;
+    private static final int MAX_PAGES = 64;
+    private static final long REPORT_INTERVAL = 5000L * 1000L * 1000L;
+
+    private static final long MISSED_EVENTS = 1L << 31;
+    private static final long MISSED_STORED = 1L << 30;
+
+    private final File mRoot;
+    private final String mSpool;
+    private volatile boolean mStopped = false;
+    private Thread mThread = null;
+
+    private File mTracefs = null;
+    private final List<String> mRestore = new ArrayList<String>();
+    private int mPageSize = 4096;
+    private int mCommitSize = 8;
+
+    private long mEvents = 0;
+    private long mBytes = 0;
+    private long mLost = 0;
+
+    public FtraceCapture(OnLineListener onLineListener, Pipeline pipeline, String spool) {
+        this(onLineListener, pipeline, spool, new File("/"));
+    }
+
+    public FtraceCapture(OnLineListener onLineListener, Pipeline pipeline, String spool, File root) {
+        super("ftrace", onLineListener, pipeline, 16, true);
+        mSpool = spool;
+        mRoot = root;
+    }
+
+    @Override
+    protected void onStart() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    capture();
+                } catch (Exception e) {
+                    Logger.ex(e);
+                } finally {
+                    restore();
+                }
+            }
+        }, "LiveBoot ftrace");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @Override
+    protected void onStop() {
+        // waits for the final drain, as we may be killed right after
+        mStopped = true;
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private static String readFile(File file) {
+        try {
+            FileInputStream is = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[16384];
+                int length = 0;
+                int read;
+                while ((length < buffer.length) && ((read = is.read(buffer, length, buffer.length - length)) > 0)) {
+                    length += read;
+                }
+                return new String(buffer, 0, length);
+            } finally {
+                is.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean writeFile(File file, String value) {
+        try {
+            FileOutputStream os = new FileOutputStream(file);
+            try {
+                os.write(value.getBytes());
+            } finally {
+                os.close();
+            }
+            return true;
+        } catch (Exception e) {
+            Logger.dp("FTRACE", "%s: %s", file.getAbsolutePath(), e.getMessage());
+            return false;
+        }
+    }
+
+    private void enable(String path) {
+        // remembers what to put back when we're done
+        File file = new File(mTracefs, path);
+        String previous = readFile(file);
+        if (previous == null) return;
+        previous = previous.trim();
+        if (!previous.equals("1") && writeFile(file, "1")) {
+            synchronized (mRestore) {
+                mRestore.add(path);
+                mRestore.add(previous);
+            }
+        }
+    }
+
+    private void restore() {
+        synchronized (mRestore) {
+            for (int i = mRestore.size() - 2; i >= 0; i -= 2) {
+                writeFile(new File(mTracefs, mRestore.get(i)), mRestore.get(i + 1));
+            }
+            mRestore.clear();
+        }
+    }
+
+    private void parseHeaderPage(String header) {
+        // "field: local_t commit; offset:8; size:8; signed:1;"
+        if (header == null) return;
+        for (String line : header.split("\n")) {
+            if (line.contains(" commit;")) {
+                int p = line.indexOf("size:");
+                if (p > -1) {
+                    int end = line.indexOf(';', p);
+                    try {
+                        mCommitSize = Integer.parseInt(line.substring(p + 5, end));
+                    } catch (Exception e) {
+                    }
+                }
+            }
+        }
+    }
+
+    private void capture() throws Exception {
+        for (String path : TRACEFS) {
+            File tracefs = new File(mRoot, path);
+            if ((new File(tracefs, "per_cpu")).isDirectory()) {
+                mTracefs = tracefs;
+                break;
+            }
+        }
+        if (mTracefs == null) {
+            Logger.dp("FTRACE", "tracefs not available");
+            return;
+        }
+
+        mPageSize = (int)Os.sysconf(OsConstants._SC_PAGESIZE);
+        if (mPageSize <= 0) mPageSize = 4096;
+        String headerPage = readFile(new File(mTracefs, "events/header_page"));
+        parseHeaderPage(headerPage);
+
+        List<FileDescriptor> cpus = new ArrayList<FileDescriptor>();
+        for (int cpu = 0; ; cpu++) {
+            File pipe = new File(mTracefs, "per_cpu/cpu" + cpu + "/trace_pipe_raw");
+            if (!pipe.exists()) break;
+            cpus.add(Os.open(pipe.getAbsolutePath(), OsConstants.O_RDONLY | OsConstants.O_NONBLOCK | OsConstants.O_CLOEXEC, 0));
+        }
+
+        DataOutputStream spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mSpool, false), 256 * 1024));
+        try {
+            spool.writeBytes("LBFT");
+            spool.writeInt(VERSION);
+            spool.writeInt(mPageSize);
+            spool.writeInt(cpus.size());
+            writeFormat(spool, "header_page", headerPage);
+            writeFormat(spool, "header_event", readFile(new File(mTracefs, "events/header_event")));
+            for (String event : EVENTS) {
+                String format = readFile(new File(mTracefs, "events/" + event + "/format"));
+                if (format == null) continue;
+                writeFormat(spool, event, format);
+                enable("events/" + event + "/enable");
+            }
+            enable("tracing_on");
+
+            byte[] page = new byte[mPageSize];
+            long lastReport = System.nanoTime();
+            long lastEvents = 0;
+            boolean last = false;
+            while (!last) {
+                last = mStopped;
+                for (int cpu = 0; cpu < cpus.size(); cpu++) {
+                    drain(spool, cpu, cpus.get(cpu), page);
+                }
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_INTERVAL) {
+                    report((mEvents - lastEvents) * 1000000000L / (now - lastReport));
+                    lastEvents = mEvents;
+                    lastReport = now;
+                }
+                if (!last) {
+                    try {
+                        Thread.sleep(DRAIN_INTERVAL);
+                    } catch (InterruptedException e) {
+                        // final drain
+                    }
+                }
+            }
+            Logger.dp("FTRACE", "%d events, %d bytes, %d pages with lost events", mEvents, mBytes, mLost);
+        } finally {
+            spool.close();
+            for (FileDescriptor fd : cpus) {
+                try {
+                    Os.close(fd);
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    private void writeFormat(DataOutputStream spool, String name, String format) throws Exception {
+        if (format == null) return;
+        byte[] bytes = format.getBytes();
+        spool.writeByte('F');
+        spool.writeUTF(name);
+        spool.writeInt(bytes.length);
+        spool.write(bytes);
+    }
+
+    private void drain(DataOutputStream spool, int cpu, FileDescriptor fd, byte[] page) throws Exception {
+        for (int i = 0; i < MAX_PAGES; i++) {
+            int read;
+            try {
+                read = Os.read(fd, page, 0, page.length);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN) return;
+                throw e;
+            }
+            if (read <= 0) return;
+            spool.writeByte('P');
+            spool.writeShort(cpu);
+            spool.writeInt(read);
+            spool.write(page, 0, read);
+            mBytes += read;
+            mEvents += countEvents(page, read);
+        }
+    }
+
+    private static long readLE(byte[] buffer, int offset, int size) {
+        long ret = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            ret = (ret << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return ret;
+    }
+
+    private int countEvents(byte[] page, int length) {
+        // page: u64 timestamp, local_t commit (data size + flags), data
+        // event: u32 header (type_len:5, time_delta:27), payload
+        int data = 8 + mCommitSize;
+        if (length < data) return 0;
+        long commit = readLE(page, 8, mCommitSize);
+        if ((commit & (MISSED_EVENTS | MISSED_STORED)) != 0) mLost++;
+        int end = data + (int)Math.min(commit & 0xFFFFF, length - data);
+
+        int count = 0;
+        int pos = data;
+        while (pos + 4 <= end) {
+            long header = readLE(page, pos, 4);
+            int type = (int)(header & 0x1F);
+            int size;
+            if (type == 0) {
+                if (pos + 8 > end) break;
+                size = 4 + (int)readLE(page, pos + 4, 4);
+                count++;
+            } else if (type <= 28) {
+                size = 4 + (type * 4);
+                count++;
+            } else if (type == 29) {
+                // padding, to the end of the page if there's no length
+                if ((header >>> 5) == 0) break;
+                if (pos + 8 > end) break;
+                size = 4 + (int)readLE(page, pos + 4, 4);
+            } else {
+                // time extend, absolute time stamp
+                size = 8;
+            }
+            if (size <= 0) break;
+            pos += size;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean onParse(LineRecord record) {
+        record.status = true;
+        return true;
+    }
+
+    private void report(long rate) {
+        String line = String.format(Locale.ENGLISH, "ftrace: %d events/s, %d KiB spooled, %d pages with lost events", rate, mBytes / 1024, mLost);
+        offer(line, COLOR);
+        flush();
+    }
+}
@@ -0,0 +1,251 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+public class GlyphAtlas {
+    // Layout of a monospace glyph atlas: every printable ASCII character in a grid of
+    // cellWidth x cellHeight cells, pinned at the top. Below it optionally a number of pages for
+    // other characters, which are assigned cells on first use and rasterized by the texture
+    // owner (see getPending). When every page is full, the least recently used page that wasn't
+    // used in the current frame is evicted as a whole; getGeneration() changes, so cells drawn
+    // from it earlier have to be written again. If no page can be evicted, FALLBACK is used.
+    // Texture coordinates are kept as unsigned normalized shorts, which is how they end up in
+    // the vertices. Nothing here touches GL or android.graphics.
+
+    public static final char FIRST = ' ';
+    public static final char LAST = '~';
+    public static final char FALLBACK = '?';
+    public static final int BLANK = -1;
+
+    private static final int COLUMNS = 16;
+    private static final int PAGE_ROWS = 4;
+
+    private final int mCellWidth;
+    private final int mCellHeight;
+    private final int mColumns;
+    private final int mPages;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBaseHeight;
+    private final short[] mUV;
+
+    private final HashMap<Character, Integer> mPaged = new HashMap<Character, Integer>();
+    private final char[] mPagedChar;
+    private final int[] mPageFill;
+    private final long[] mPageUsed;
+    private int mPage = -1;
+    private long mFrame = 0;
+    private long mGeneration = 0;
+    private int[] mPending = new int[16];
+    private int mPendingCount = 0;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    public GlyphAtlas(int cellWidth, int cellHeight, int maxSize) {
+        this(Math.max(1, cellWidth), Math.max(1, cellHeight), Math.max(1, Math.min(COLUMNS, maxSize / Math.max(1, cellWidth))), 0);
+    }
+
+    private GlyphAtlas(int cellWidth, int cellHeight, int columns, int pages) {
+        mCellWidth = cellWidth;
+        mCellHeight = cellHeight;
+        mColumns = columns;
+        mPages = pages;
+        mWidth = mColumns * mCellWidth;
+        mBaseHeight = ((getFixedCount() + mColumns - 1) / mColumns) * mCellHeight;
+        mHeight = mBaseHeight + mPages * getPageHeight();
+
+        mUV = new short[getGlyphCount() * 4];
+        for (int i = 0; i < getGlyphCount(); i++) {
+            mUV[i * 4] = normalize(getX(i), mWidth);
+            mUV[i * 4 + 1] = normalize(getY(i), mHeight);
+            mUV[i * 4 + 2] = normalize(getX(i) + mCellWidth, mWidth);
+            mUV[i * 4 + 3] = normalize(getY(i) + mCellHeight, mHeight);
+        }
+
+        mPagedChar = new char[mPages * getPageGlyphs()];
+        mPageFill = new int[mPages];
+        mPageUsed = new long[mPages];
+    }
+
+    public GlyphAtlas withPages(int pages) {
+        // same layout of the fixed glyphs, plus pages
+        return new GlyphAtlas(mCellWidth, mCellHeight, mColumns, Math.max(0, pages));
+    }
+
+    public int getPageCount(int budget, int maxSize) {
+        // pages that fit in budget bytes of 8-bit texture, and the maximum texture size
+        int pageBytes = mWidth * getPageHeight();
+        return Math.max(0, Math.min(budget / pageBytes, (maxSize - mBaseHeight) / getPageHeight()));
+    }
+    private static short normalize(int position, int size) {
+        return (short)(((long)position * 0xFFFF) / size);
+    }
+
+    public int getCellWidth() {
+        return mCellWidth;
+    }
+
+    public int getCellHeight() {
+        return mCellHeight;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getBaseHeight() {
+        // the fixed glyphs only
+        return mBaseHeight;
+    }
+
+    private int getPageHeight() {
+        return PAGE_ROWS * mCellHeight;
+    }
+
+    private int getPageGlyphs() {
+        return PAGE_ROWS * mColumns;
+    }
+
+    public int getFixedCount() {
+        return LAST - FIRST + 1;
+    }
+
+    public int getGlyphCount() {
+        return getFixedCount() + mPages * getPageGlyphs();
+    }
+
+    public char getChar(int index) {
+        if (index < getFixedCount()) return (char)(FIRST + index);
+        return mPagedChar[index - getFixedCount()];
+    }
+
+    public int indexOf(char c) {
+        // BLANK for anything that doesn't need a quad
+        if ((c == ' ') || (c < FIRST)) return BLANK;
+        if (c <= LAST) return c - FIRST;
+        if ((mPages == 0) || Character.isISOControl(c) || Character.isSurrogate(c)) return FALLBACK - FIRST;
+
+        Integer index = mPaged.get(c);
+        if (index != null) {
+            mHits++;
+            mPageUsed[(index - getFixedCount()) / getPageGlyphs()] = mFrame;
+            return index;
+        }
+        mMisses++;
+        int page = allocatePage();
+        if (page == -1) return FALLBACK - FIRST;
+
+        int cell = page * getPageGlyphs() + mPageFill[page]++;
+        mPagedChar[cell] = c;
+        mPageUsed[page] = mFrame;
+        int ret = getFixedCount() + cell;
+        mPaged.put(c, ret);
+        if (mPendingCount == mPending.length) {
+            int[] pending = new int[mPending.length * 2];
+            System.arraycopy(mPending, 0, pending, 0, mPendingCount);
+            mPending = pending;
+        }
+        mPending[mPendingCount++] = ret;
+        return ret;
+    }
+
+    private int allocatePage() {
+        if ((mPage >= 0) && (mPageFill[mPage] < getPageGlyphs())) return mPage;
+        for (int i = 0; i < mPages; i++) {
+            if (mPageFill[i] == 0) return mPage = i;
+        }
+
+        int lru = -1;
+        for (int i = 0; i < mPages; i++) {
+            if ((mPageUsed[i] < mFrame) && ((lru == -1) || (mPageUsed[i] < mPageUsed[lru]))) lru = i;
+        }
+        if (lru == -1) return -1;
+        for (int i = 0; i < mPageFill[lru]; i++) {
+            mPaged.remove(mPagedChar[lru * getPageGlyphs() + i]);
+        }
+        for (int i = mPendingCount - 1; i >= 0; i--) {
+            if ((mPending[i] - getFixedCount()) / getPageGlyphs() == lru) mPending[i] = mPending[--mPendingCount];
+        }
+        mPageFill[lru] = 0;
+        mEvictions++;
+        mGeneration++;
+        return mPage = lru;
+    }
+
+    public void nextFrame() {
+        // pages used after this may not be evicted until the next call
+        mFrame++;
+    }
+
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    public int getPending(int i) {
+        // index of a glyph that was assigned a cell, but still has to be rasterized into it
+        return mPending[i];
+    }
+
+    public void clearPending() {
+        mPendingCount = 0;
+    }
+
+    public String getStats() {
+        long lookups = mHits + mMisses;
+        return String.format(Locale.ENGLISH, "glyphs: %d pages, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                mPages, mHits, mMisses, lookups > 0 ? (mHits * 100f) / lookups : 100f, mEvictions);
+    }
+
+    public int getX(int index) {
+        if (index >= getFixedCount()) return ((index - getFixedCount()) % mColumns) * mCellWidth;
+        return (index % mColumns) * mCellWidth;
+    }
+
+    public int getY(int index) {
+        if (index >= getFixedCount()) return mBaseHeight + ((index - getFixedCount()) / mColumns) * mCellHeight;
+        return (index / mColumns) * mCellHeight;
+    }
+
+    public short getU0(int index) {
+        return mUV[index * 4];
+    }
+
+    public short getV0(int index) {
+        return mUV[index * 4 + 1];
+    }
+
+    public short getU1(int index) {
+        return mUV[index * 4 + 2];
+    }
+
+    public short getV1(int index) {
+        return mUV[index * 4 + 3];
+    }
+}
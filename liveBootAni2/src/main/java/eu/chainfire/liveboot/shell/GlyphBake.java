@@ -0,0 +1,210 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import eu.chainfire.librootjava.Logger;
+
+public class GlyphBake {
+    // The monospace font rasterized into a GlyphAtlas layout, as tightly packed 8-bit alpha. The
+    // app bakes it at install time into a file, so the boot doesn't have to rasterize fonts while
+    // the first frame is waiting; the boot maps the file and uploads it as is. The checksum covers
+    // what the atlas depends on (screen size, line count, font), on a mismatch the boot
+    // rasterizes itself and the app bakes again on the next install or settings change.
+    //
+    // Format (little endian): u32 magic, u32 version, u32 checksum, u32 line height,
+    // u32 cell width, u32 width, u32 height, width * height alpha bytes
+
+    private static final int MAGIC = 0x4147424c; // "LBGA"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int MAX_SIZE = 2048; // atlas layout limit, at least what any GPU does
+    private static final String FONT = "monospace";
+
+    private final GlyphAtlas mAtlas;
+    private final ByteBuffer mPixels;
+
+    private GlyphBake(GlyphAtlas atlas, ByteBuffer pixels) {
+        mAtlas = atlas;
+        mPixels = pixels;
+    }
+
+    public GlyphAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    public ByteBuffer getPixels() {
+        return mPixels;
+    }
+
+    public static int checksum(int width, int height, int lines) {
+        // the font changes with the firmware
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(VERSION).putInt(width).putInt(height).putInt(lines);
+        crc.update(buffer.array());
+        crc.update((FONT + "/" + Build.FINGERPRINT).getBytes());
+        return (int)crc.getValue();
+    }
+
+    static Paint createPaint(int lineHeight) {
+        // monospace, sized so ascent to descent fills the line
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTypeface(Typeface.MONOSPACE);
+        paint.setColor(Color.WHITE);
+        paint.setTextSize(lineHeight);
+        Paint.FontMetrics metrics = paint.getFontMetrics();
+        float height = metrics.descent - metrics.ascent;
+        if (height > 0) {
+            paint.setTextSize(lineHeight * lineHeight / height);
+        }
+        return paint;
+    }
+
+    static ByteBuffer pack(Bitmap bitmap) {
+        // ALPHA_8 pixels without row padding
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int stride = bitmap.getRowBytes();
+        ByteBuffer raw = ByteBuffer.allocateDirect(stride * height);
+        bitmap.copyPixelsToBuffer(raw);
+        ByteBuffer pixels = raw;
+        if (stride != width) {
+            pixels = ByteBuffer.allocateDirect(width * height);
+            byte[] row = new byte[width];
+            for (int y = 0; y < height; y++) {
+                raw.position(y * stride);
+                raw.get(row);
+                pixels.put(row);
+            }
+        }
+        pixels.position(0);
+        return pixels;
+    }
+
+    public static GlyphBake render(int lineHeight) {
+        Paint paint = createPaint(lineHeight);
+        float ascent = paint.getFontMetrics().ascent;
+        int cellWidth = (int)Math.ceil(paint.measureText("M"));
+        GlyphAtlas atlas = new GlyphAtlas(cellWidth, lineHeight, MAX_SIZE);
+
+        Bitmap bitmap = Bitmap.createBitmap(atlas.getWidth(), atlas.getHeight(), Bitmap.Config.ALPHA_8);
+        Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < atlas.getFixedCount(); i++) {
+            canvas.drawText(String.valueOf(atlas.getChar(i)), atlas.getX(i), atlas.getY(i) - ascent, paint);
+        }
+        ByteBuffer pixels = pack(bitmap);
+        bitmap.recycle();
+        return new GlyphBake(atlas, pixels);
+    }
+
+    public static boolean write(File file, int checksum, GlyphBake bake) {
+        GlyphAtlas atlas = bake.getAtlas();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(checksum);
+        header.putInt(atlas.getCellHeight());
+        header.putInt(atlas.getCellWidth());
+        header.putInt(atlas.getWidth());
+        header.putInt(atlas.getHeight());
+
+        // replaced atomically, the boot process may be reading it (test run)
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            FileOutputStream os = new FileOutputStream(temp, false);
+            try {
+                FileChannel channel = os.getChannel();
+                header.position(0);
+                while (header.hasRemaining()) channel.write(header);
+                ByteBuffer pixels = bake.getPixels().duplicate();
+                pixels.position(0);
+                while (pixels.hasRemaining()) channel.write(pixels);
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            if (temp.renameTo(file)) return true;
+        } catch (Exception e) {
+            Logger.ex(e);
+        }
+        temp.delete();
+        return false;
+    }
+
+    public static int readChecksum(File file) {
+        // 0 if there's no usable file
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < HEADER_SIZE) return 0;
+                if ((Integer.reverseBytes(raf.readInt()) != MAGIC) || (Integer.reverseBytes(raf.readInt()) != VERSION)) return 0;
+                return Integer.reverseBytes(raf.readInt());
+            } finally {
+                raf.close();
+            }
+        } catch (Exception e) {
+            // not there
+        }
+        return 0;
+    }
+
+    public static GlyphBake read(File file, int checksum) {
+        // the pixels stay mapped, null if missing or baked for something else
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                if (length < HEADER_SIZE) return null;
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION) || (buffer.getInt() != checksum)) return null;
+                int lineHeight = buffer.getInt();
+                int cellWidth = buffer.getInt();
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+
+                GlyphAtlas atlas = new GlyphAtlas(cellWidth, lineHeight, MAX_SIZE);
+                if ((atlas.getWidth() != width) || (atlas.getHeight() != height)) return null;
+                if (length - HEADER_SIZE != (long)width * height) return null;
+
+                buffer.position(HEADER_SIZE);
+                return new GlyphBake(atlas, buffer.slice());
+            } finally {
+                raf.close();
+            }
+        } catch (Exception e) {
+            Logger.ex(e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,112 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.opengl.GLES20;
+
+public class GlyphTexture {
+    // A GlyphBake uploaded as an alpha texture, plus room for BUDGET bytes of GlyphAtlas pages
+    // below it. Glyphs outside the bake are rasterized one cell at a time in update(), when the
+    // atlas assigned them a cell. GL thread only.
+
+    private static final int BUDGET = 512 * 1024;
+
+    private final GlyphAtlas mAtlas;
+    private int mTexture;
+    private Paint mPaint = null;
+    private Bitmap mCell = null;
+    private Canvas mCanvas = null;
+
+    public GlyphTexture(int lineHeight) {
+        this(GlyphBake.render(lineHeight));
+    }
+
+    public GlyphTexture(GlyphBake bake) {
+        int[] maxSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        GlyphAtlas base = bake.getAtlas();
+        mAtlas = base.withPages(base.getPageCount(BUDGET, maxSize[0]));
+
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        mTexture = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (mAtlas.getHeight() == base.getHeight()) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_ALPHA, mAtlas.getWidth(), mAtlas.getHeight(), 0, GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, bake.getPixels());
+        } else {
+            // pages are filled in as glyphs are needed
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_ALPHA, mAtlas.getWidth(), mAtlas.getHeight(), 0, GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, base.getWidth(), base.getHeight(), GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, bake.getPixels());
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    public void update() {
+        // rasterizes the glyphs the atlas assigned a cell since the last call
+        int count = mAtlas.getPendingCount();
+        if (count == 0) return;
+        if (mPaint == null) {
+            mPaint = GlyphBake.createPaint(mAtlas.getCellHeight());
+            mCell = Bitmap.createBitmap(mAtlas.getCellWidth(), mAtlas.getCellHeight(), Bitmap.Config.ALPHA_8);
+            mCanvas = new Canvas(mCell);
+        }
+        float ascent = mPaint.getFontMetrics().ascent;
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        for (int i = 0; i < count; i++) {
+            int index = mAtlas.getPending(i);
+            String glyph = String.valueOf(mAtlas.getChar(index));
+
+            // wide glyphs (CJK) are squeezed into the cell
+            float width = mPaint.measureText(glyph);
+            mPaint.setTextScaleX(width > mAtlas.getCellWidth() ? mAtlas.getCellWidth() / width : 1f);
+            mCell.eraseColor(0);
+            mCanvas.drawText(glyph, 0, -ascent, mPaint);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, mAtlas.getX(index), mAtlas.getY(index), mAtlas.getCellWidth(), mAtlas.getCellHeight(), GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, GlyphBake.pack(mCell));
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mAtlas.clearPending();
+    }
+
+    public GlyphAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    public int getTexture() {
+        return mTexture;
+    }
+
+    public void destroy() {
+        if (mCell != null) {
+            mCell.recycle();
+            mCell = null;
+        }
+        if (mTexture != 0) {
+            GLES20.glDeleteTextures(1, new int[] { mTexture }, 0);
+            mTexture = 0;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.graphics.Color;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import eu.chainfire.librootjava.Logger;
+
+public class LastKmsg extends LogSource {
+    // Shows the tail of the previous boot's kernel console, before any of the live sources. The
+    // file is memory-mapped and only the last lines are decoded, located by scanning backwards
+    // for line boundaries. Files that can't be mapped (procfs reports a size of 0) are streamed
+    // through a ring of the last lines instead, so the file is never copied onto the heap.
+
+    private static final int COLOR = Color.MAGENTA;
+    private static final String PSTORE = "/sys/fs/pstore";
+    private static final String PSTORE_CONSOLE = "console-ramoops";
+    private static final String LAST_KMSG = "/proc/last_kmsg";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int mLines;
+    private final File mRoot;
+    private volatile boolean mLoaded = false;
+
+    public LastKmsg(OnLineListener onLineListener, int lines, Pipeline pipeline) {
+        this(onLineListener, lines, pipeline, new File("/"));
+    }
+
+    public LastKmsg(OnLineListener onLineListener, int lines, Pipeline pipeline, File root) {
+        super("last_kmsg", onLineListener, pipeline, lines + 1, true);
+        mLines = lines;
+        mRoot = root;
+    }
+
+    public File find() {
+        File[] pstore = (new File(mRoot, PSTORE)).listFiles();
+        if (pstore != null) {
+            Arrays.sort(pstore);
+            for (File file : pstore) {
+                if (file.getName().startsWith(PSTORE_CONSOLE) && (file.length() > 0)) return file;
+            }
+        }
+        File file = new File(mRoot, LAST_KMSG);
+        if (file.exists()) return file;
+        return null;
+    }
+
+    @Override
+    protected void onStart() {
+        (new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    File file = find();
+                    if (file != null) {
+                        Logger.dp("LAST_KMSG", "%s", file.getAbsolutePath());
+                        offer(String.format(Locale.ENGLISH, "--- %s ---", file.getAbsolutePath()), COLOR);
+                        if (!readMapped(file)) readStreamed(file);
+                    }
+                } catch (Exception e) {
+                    Logger.ex(e);
+                } finally {
+                    flush();
+                    mLoaded = true;
+                }
+            }
+        }, "LiveBoot last_kmsg")).start();
+    }
+
+    @Override
+    protected void onStop() {
+    }
+
+    @Override
+    public boolean holdsOthers() {
+        // the live streams wait until the previous boot has been shown
+        return !mLoaded || hasBatch();
+    }
+
+    private boolean readMapped(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if ((size <= 0) || (size > Integer.MAX_VALUE)) return false;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // index the starts of the last mLines lines, backwards from the end
+            int[] starts = new int[mLines + 1];
+            int count = 0;
+            int end = (int)size;
+            while ((end > 0) && isEol(buffer.get(end - 1))) end--;
+            int pos = end;
+            starts[count++] = end + 1; // virtual start of the line after the last one
+            while ((pos > 0) && (count <= mLines)) {
+                pos--;
+                if (buffer.get(pos) == '\n') starts[count++] = pos + 1;
+            }
+            if ((pos == 0) && (count <= mLines)) starts[count++] = 0;
+
+            byte[] line = new byte[256];
+            for (int i = count - 1; i > 0; i--) {
+                int start = starts[i];
+                int length = starts[i - 1] - 1 - start;
+                if (length <= 0) continue;
+                if (line.length < length) line = new byte[length];
+                buffer.position(start);
+                buffer.get(line, 0, length);
+                emit(new String(line, 0, length, UTF8));
+            }
+            return true;
+        } catch (Exception e) {
+            // sysfs and procfs files may refuse to be mapped
+            Logger.dp("LAST_KMSG", "map failed: %s", e.getMessage());
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    private void readStreamed(File file) throws Exception {
+        String[] ring = new String[mLines];
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(file), 16384);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ring[count % mLines] = line;
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        for (int i = Math.max(0, count - mLines); i < count; i++) {
+            emit(ring[i % mLines]);
+        }
+    }
+
+    private static boolean isEol(byte b) {
+        return (b == '\n') || (b == '\r') || (b == 0);
+    }
+
+    private void emit(String line) {
+        int end = line.length();
+        while ((end > 0) && (line.charAt(end - 1) == '\r')) end--;
+        if (end > 0) offer(line.substring(0, end), COLOR);
+    }
+}
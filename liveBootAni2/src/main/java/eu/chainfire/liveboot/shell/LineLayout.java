@@ -0,0 +1,55 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+public class LineLayout {
+    // Row breaks for a line on a fixed-advance (monospace) grid, in a single pass over the chars.
+    // A row is broken after its last space if that doesn't leave it less than half full,
+    // otherwise at the column limit. Work is capped: after MAX_ROWS rows the rest of the line is
+    // dropped, a kernel or stack dump line shouldn't push the whole screen away.
+
+    public static final int MAX_ROWS = 16;
+
+    public static int layout(String text, int columns, boolean wordWrap, int[] breaks) {
+        // stores the end index of every row in breaks (MAX_ROWS long), returns the row count
+        int length = text.length();
+        if (length <= columns) {
+            breaks[0] = length;
+            return 1;
+        }
+        if (!wordWrap) {
+            breaks[0] = columns;
+            return 1;
+        }
+
+        int rows = 0;
+        int start = 0;
+        int space = -1;
+        for (int i = 0; i < length; i++) {
+            if (i - start == columns) {
+                // char i is the first that doesn't fit
+                int end = ((space >= start + (columns / 2)) && (space < i)) ? space + 1 : i;
+                breaks[rows++] = end;
+                if (rows == MAX_ROWS) return rows;
+                start = end;
+            }
+            if (text.charAt(i) == ' ') space = i;
+        }
+        breaks[rows++] = length;
+        return rows;
+    }
+}
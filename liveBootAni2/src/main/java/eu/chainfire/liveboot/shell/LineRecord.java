@@ -0,0 +1,60 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+public class LineRecord {
+    // Slot in the Pipeline ring. These are allocated once and reused for every line that passes
+    // through, only the stage currently owning the slot may touch it.
+
+    public Pipeline.Handler handler = null;
+    public Object sender = null;
+    public String text = null;
+    public int color = 0;
+    public int level = -1;
+    public int pid = 0;
+    public int tid = 0;
+    public int body = 0;
+    public boolean drop = false;
+    public boolean priority = false;
+    public boolean status = false;
+    boolean diverted = false;
+
+    public long received = 0;
+    public final long[] done = new long[Pipeline.STAGES];
+
+    void set(Pipeline.Handler handler, Object sender, String text, int color, long received) {
+        this.handler = handler;
+        this.sender = sender;
+        this.text = text;
+        this.color = color;
+        this.level = -1;
+        this.pid = 0;
+        this.tid = 0;
+        this.body = 0;
+        this.drop = false;
+        this.priority = false;
+        this.status = false;
+        this.diverted = false;
+        this.received = received;
+    }
+
+    void clear() {
+        handler = null;
+        sender = null;
+        text = null;
+    }
+}
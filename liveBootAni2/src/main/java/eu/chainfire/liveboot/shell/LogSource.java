@@ -0,0 +1,333 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import eu.chainfire.librootjava.Logger;
+import eu.chainfire.libsuperuser.Shell;
+
+public abstract class LogSource implements Pipeline.Handler {
+    // Base for everything that produces lines. Subclasses read from wherever they like and offer()
+    // each line; the Pipeline's read thread pulls them out in batches through readBatch().
+    //
+    // Sources with burst handling only keep the last cacheSize lines of the initial dump (a
+    // logcat or dmesg history can easily be thousands of lines), until there has been a quiet
+    // moment of BURST_GAP ms after we are ready. After that, lines pass through as they come in,
+    // and offer() blocks when the pipeline falls cacheSize lines behind.
+    //
+    // Lines a source flags through isPriority() (errors, crashes) are never evicted during a
+    // burst (unless the cache holds nothing else), and once we are ready they are released
+    // straight away, ahead of the cached lines; the pipeline puts them in the priority lane
+    // anyway.
+
+    private static final long BURST_GAP = 16;
+
+    private final String mName;
+    private final OnLineListener mOnLineListener;
+    private final Pipeline mPipeline;
+    private final int mCacheSize;
+
+    // ring of cached/queued lines, guarded by mLock
+    private final String[] mText;
+    private final int[] mColor;
+    private final long[] mReceived;
+    private final boolean[] mPriority;
+    private int mHead = 0;
+    private int mCount = 0;
+    private final ReentrantLock mLock = new ReentrantLock(true);
+    private final Condition mNotFull = mLock.newCondition();
+
+    private long mLineLast = 0;
+    private volatile boolean mLinePassthrough = false;
+    private volatile boolean mReady = false;
+    private volatile int mFlush = 0; // cached lines released by setReady, before passthrough
+    private volatile int mPending = 0;
+    private volatile int mPriorityCount = 0;
+    private volatile boolean mStopped = false;
+    private Thread mStarter = null;
+
+    private volatile long mStatLines = 0;
+    private volatile long mStatEvicted = 0;
+    private volatile long mStatStalls = 0;
+    private long mStatBatches = 0; // read thread only
+    private int mStatMaxBatch = 0; // read thread only
+
+    public LogSource(String name, OnLineListener onLineListener, Pipeline pipeline, int cacheSize, boolean burst) {
+        mName = name;
+        mOnLineListener = onLineListener;
+        mPipeline = pipeline;
+        mCacheSize = cacheSize;
+        mText = new String[cacheSize];
+        mColor = new int[cacheSize];
+        mReceived = new long[cacheSize];
+        mPriority = new boolean[cacheSize];
+        if (!burst) {
+            mReady = true;
+            mLinePassthrough = true;
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    protected abstract void onStart();
+
+    protected abstract void onStop();
+
+    public void start() {
+        mPipeline.addSource(this);
+        onStart();
+        PhaseTimer.mark(mName + "_started");
+    }
+
+    public void startAsync() {
+        // for sources that take a while to get going (spawning a shell), so the caller can get on
+        // with bringing up the surface; lines are cached until setReady() either way
+        mPipeline.addSource(this);
+        mStarter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                onStart();
+                PhaseTimer.mark(mName + "_started");
+            }
+        }, "LiveBoot start " + mName);
+        mStarter.setDaemon(true);
+        mStarter.start();
+    }
+
+    public void destroy() {
+        mStopped = true;
+        mLock.lock();
+        try {
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        mPipeline.removeSource(this);
+        Thread starter = mStarter;
+        if (starter != null) {
+            // don't stop what's still starting; if it takes longer than this, onStart() has to
+            // check isStopped() and clean up after itself
+            try {
+                starter.join(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+        onStop();
+    }
+
+    protected boolean isStopped() {
+        return mStopped;
+    }
+
+    public void setReady() {
+        mLock.lock();
+        try {
+            mReady = true;
+            mFlush = mCount;
+        } finally {
+            mLock.unlock();
+        }
+        mPipeline.wakeReader();
+    }
+
+    protected void flush() {
+        // for sources that know they're done: release everything cached so far once we're ready,
+        // without waiting for a quiet moment that may never come
+        mLock.lock();
+        try {
+            if (mReady) mFlush = mCount;
+        } finally {
+            mLock.unlock();
+        }
+        mPipeline.wakeReader();
+    }
+
+    public boolean holdsOthers() {
+        // while true, the read thread doesn't pull from sources registered after this one
+        return false;
+    }
+
+    protected boolean isPriority(String line) {
+        // read side, called for every line offered, keep it cheap
+        return false;
+    }
+
+    protected void log(String line) {
+        mOnLineListener.onLog(this, line);
+    }
+
+    protected void offer(String line, int color) {
+        // sources with a parser may still override the color in onParse
+        long received = System.nanoTime();
+        boolean priority = isPriority(line);
+        mLock.lock();
+        try {
+            if (!mLinePassthrough) {
+                long now = SystemClock.uptimeMillis();
+                if ((mLineLast > 0) && (now - mLineLast > BURST_GAP)) {
+                    if (mReady) mLinePassthrough = true;
+                    mLineLast = 1;
+                } else {
+                    mLineLast = now;
+                }
+            }
+
+            if (mLinePassthrough) {
+                while ((mCount >= mCacheSize) && !mStopped) {
+                    mStatStalls++;
+                    mPipeline.wakeReader();
+                    try {
+                        mNotFull.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mStopped) return;
+            } else if (mCount >= mCacheSize) {
+                // the oldest line that isn't priority
+                int offset = 0;
+                if (mPriorityCount > 0) {
+                    while ((offset < mCount) && mPriority[(mHead + offset) % mCacheSize]) offset++;
+                    if (offset == mCount) offset = 0;
+                }
+                remove(offset);
+                mStatEvicted++;
+            }
+            int index = (mHead + mCount) % mCacheSize;
+            mText[index] = line;
+            mColor[index] = color;
+            mReceived[index] = received;
+            mPriority[index] = priority;
+            if (priority) mPriorityCount++;
+            mCount++;
+            mPending = mCount;
+            if (mStatLines == 0) PhaseTimer.mark(mName + "_first_line");
+            mStatLines++;
+        } finally {
+            mLock.unlock();
+        }
+        if (hasBatch()) mPipeline.wakeReader();
+    }
+
+    private void remove(int offset) {
+        // drops the line offset lines from the head, keeping the order of the rest; mLock held
+        if (mPriority[(mHead + offset) % mCacheSize]) mPriorityCount--;
+        for (int i = offset; i > 0; i--) {
+            int to = (mHead + i) % mCacheSize;
+            int from = (mHead + i - 1) % mCacheSize;
+            mText[to] = mText[from];
+            mColor[to] = mColor[from];
+            mReceived[to] = mReceived[from];
+            mPriority[to] = mPriority[from];
+        }
+        mText[mHead] = null;
+        mPriority[mHead] = false;
+        mHead = (mHead + 1) % mCacheSize;
+        mCount--;
+        if (offset < mFlush) mFlush--;
+    }
+
+    boolean hasBatch() {
+        return (mPending > 0) && (mLinePassthrough ? mReady : ((mFlush > 0) || (mReady && (mPriorityCount > 0))));
+    }
+
+    int readBatch(RecordBuffer buffer) {
+        // read thread only
+        if (!hasBatch()) return 0;
+        int count = 0;
+        mLock.lock();
+        try {
+            if (!mLinePassthrough && mReady) {
+                // priority lines that haven't been released yet don't wait for the burst to end
+                int offset = mFlush;
+                while ((offset < mCount) && (mPriorityCount > 0) && !buffer.isFull()) {
+                    int index = (mHead + offset) % mCacheSize;
+                    if (mPriority[index]) {
+                        buffer.add(mText[index], mColor[index], mReceived[index]);
+                        remove(offset);
+                        count++;
+                    } else {
+                        offset++;
+                    }
+                }
+            }
+            int limit = mLinePassthrough ? mCount : Math.min(mFlush, mCount);
+            int released = 0;
+            while ((released < limit) && !buffer.isFull()) {
+                buffer.add(mText[mHead], mColor[mHead], mReceived[mHead]);
+                if (mPriority[mHead]) mPriorityCount--;
+                mText[mHead] = null;
+                mPriority[mHead] = false;
+                mHead = (mHead + 1) % mCacheSize;
+                mCount--;
+                released++;
+            }
+            if (!mLinePassthrough) mFlush -= released;
+            count += released;
+            mPending = mCount;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        if (count > 0) {
+            mStatBatches++;
+            if (count > mStatMaxBatch) mStatMaxBatch = count;
+        }
+        return count;
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%s: %d lines, %d evicted during burst, %d batches (max %d), %d stalls",
+                mName, mStatLines, mStatEvicted, mStatBatches, mStatMaxBatch, mStatStalls);
+    }
+
+    @Override
+    public boolean onParse(LineRecord record) {
+        return true;
+    }
+
+    @Override
+    public boolean onFilter(LineRecord record) {
+        return true;
+    }
+
+    @Override
+    public void onTick() {
+    }
+
+    protected static void closeShell(final Shell.Interactive shell) {
+        if (shell == null) return;
+        (new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    shell.kill();
+                    shell.close();
+                } catch (Exception e) {
+                    Logger.ex(e);
+                }
+            }
+        })).start();
+    }
+}
@@ -17,20 +17,16 @@
 package eu.chainfire.liveboot.shell;
 
 import android.graphics.Color;
-import android.os.Handler;
-import android.os.SystemClock;
 
 import java.io.File;
-import java.util.LinkedList;
 import java.util.Locale;
-import java.util.concurrent.locks.ReentrantLock;
 
 import eu.chainfire.librootjava.Logger;
 import eu.chainfire.libsuperuser.Shell;
 import eu.chainfire.libsuperuser.StreamGobbler;
 import eu.chainfire.liveboot.R;
 
-public class Logcat {    
+public class Logcat extends LogSource {    
     public static final int INDEX_LEVEL_VERBOSE = 0;
     public static final int INDEX_LEVEL_DEBUG   = 1;
     public static final int INDEX_LEVEL_INFO    = 2;
@@ -113,14 +109,12 @@ public class Logcat {
     private static boolean[] mBuffers = new boolean[] { true, true, true, true, true };
     private static String mFormat = "brief";
 
-    private final Shell.Interactive mShell;
-    private final OnLineListener mOnLineListener;
-    
-    private volatile long mLineLast = 0;
-    private volatile boolean mLinePassthrough = false;
-    private final LinkedList<String> mCache = new LinkedList<String>();
-    private final int mCacheSize;
-    private volatile boolean mReady = false;
+    private int mBuffer = -1; // parse thread only
+    private int mReadBuffer = -1; // read side only
+    private final StackFolder mFolder;
+
+    private final String mCommand;
+    private volatile Shell.Interactive mShell = null;
     
     private final String[] mSkip = new String[] { 
             " " + String.valueOf(android.os.Process.myPid()) + ")", 
@@ -128,9 +122,9 @@ public class Logcat {
             "LiveBoot" 
     };
     
-    private final ReentrantLock mLock = new ReentrantLock(true);
-    
-    public Logcat(OnLineListener onLineListener, int cacheSize, String levels, String buffers, String format, Handler handler) {
+    public Logcat(OnLineListener onLineListener, int cacheSize, String levels, String buffers, String format, Pipeline pipeline) {
+        super("logcat", onLineListener, pipeline, cacheSize, true);
+
         boolean haveLevels = true;
         boolean haveBuffers = true;
         
@@ -178,46 +172,26 @@ public class Logcat {
             logcat = command.toString();
         }
         
-        final Logcat _this = this;
-        mOnLineListener = onLineListener;
-        mCacheSize = cacheSize;
+        mCommand = logcat;
+        mFolder = new StackFolder(pipeline, this);
+    }
+
+    @Override
+    protected void onStart() {
         mShell = (new Shell.Builder())
             .setAutoHandler(false)
-            .setHandler(handler)
             .useSH()
             .setOnSTDOUTLineListener(new StreamGobbler.OnLineListener() {                
                 @Override
                 public void onLine(String line) {                    
-                    mOnLineListener.onLog(_this, line);
+                    log(line);
                     if (line.contains("libsuperuser")) return;
                     if (line.contains("SuperSU")) return;
                     if (line.contains("LiveBoot")) return;
+                    if (line.length() == 0) return;
 
                     try {
-                        mLock.lock();
-                        try {
-                            if (!mLinePassthrough) {
-                                long now = SystemClock.uptimeMillis();
-                                if ((mLineLast > 0) && (now - mLineLast > 16)) {
-                                    if (mReady) {
-                                        mLinePassthrough = true;
-                                        processCache();
-                                    }
-                                    mLineLast = 1;
-                                } else {
-                                    mLineLast = now;
-                                }
-                            }
-                        
-                            if (mLinePassthrough) {
-                                processLine(line);
-                            } else {
-                                if (mCache.size() >= mCacheSize) mCache.pop();
-                                mCache.add(line);
-                            }
-                        } finally {
-                            mLock.unlock();
-                        }
+                        offer(line, Color.WHITE);
                     } catch (Exception e) {
                         Logger.ex(e);
                     }
@@ -226,90 +200,164 @@ public class Logcat {
             .setOnSTDERRLineListener(new StreamGobbler.OnLineListener() {                
                 @Override
                 public void onLine(String line) {
-                    mOnLineListener.onLog(_this, line);
+                    log(line);
                     Logger.dp("logcat/stderr", "%s", line);
                 }
             })
-            .addCommand(logcat)
+            .addCommand(mCommand)
             .open();
+        // destroy() gave up waiting for us
+        if (isStopped()) closeShell(mShell);
     }
-    
-    private void processCache() {
-        for (String s : mCache) {
-            processLine(s);
-        }        
-        mCache.clear();
+
+    @Override
+    protected void onStop() {
+        closeShell(mShell);
     }
-    
-    private void processLine(String line) {
-        if (line.length() > 0) {
-            int index = -1;
-            if (mFormat.equals("time")) {
-                int end = line.indexOf('(');
-                if (end > -1) {
-                    for (int i = INDEX_LEVEL_FIRST; i <= INDEX_LEVEL_LAST; i++) {
-                        int pos = line.indexOf(" " + LEVEL_CHARACTERS[i] + "/");
-                        if ((pos > -1) && (pos < end)) {
-                            index = i;
-                            break;
-                        }
-                    }
+
+    private static int buffer(String line) {
+        // "--------- beginning of crash", "--------- switch to main", ...
+        for (int i = INDEX_BUFFER_FIRST; i <= INDEX_BUFFER_LAST; i++) {
+            if (line.endsWith(" " + BUFFER_NAMES[i])) return i;
+        }
+        return -1;
+    }
+
+    private static int level(String line) {
+        // -1 if the line doesn't parse in the selected format
+        if (mFormat.equals("time")) {
+            int end = line.indexOf('(');
+            if (end > -1) {
+                for (int i = INDEX_LEVEL_FIRST; i <= INDEX_LEVEL_LAST; i++) {
+                    int pos = line.indexOf(" " + LEVEL_CHARACTERS[i] + "/");
+                    if ((pos > -1) && (pos < end)) return i;
                 }
-            } else if (mFormat.equals("threadtime")) {
-                int end = line.indexOf(": ");
-                if (end > -1) {
-                    for (int i = INDEX_LEVEL_FIRST; i <= INDEX_LEVEL_LAST; i++) {
-                        int pos = line.indexOf(" " + LEVEL_CHARACTERS[i] + " ");
-                        if ((pos > -1) && (pos < end)) {
-                            index = i;
-                            break;
-                        }
-                    }
-                }                
-            } else {
-                char c = line.charAt(0);
+            }
+        } else if (mFormat.equals("threadtime")) {
+            int end = line.indexOf(": ");
+            if (end > -1) {
                 for (int i = INDEX_LEVEL_FIRST; i <= INDEX_LEVEL_LAST; i++) {
-                    if (c == LEVEL_CHARACTERS[i]) {
-                        index = i;
-                        break;
-                    }
+                    int pos = line.indexOf(" " + LEVEL_CHARACTERS[i] + " ");
+                    if ((pos > -1) && (pos < end)) return i;
                 }
             }
-            if (index > -1) {
-                if (mLevels[index]) {
-                    boolean ok = true;
-                    for (String skip : mSkip) {
-                        if (line.contains(skip)) {
-                            ok = false;
-                            break;
-                        }
-                    }
-                    if (ok) {
-                        mOnLineListener.onLine(this, line, LEVEL_COLORS[index]);
-                    }
+        } else if (line.length() > 0) {
+            char c = line.charAt(0);
+            for (int i = INDEX_LEVEL_FIRST; i <= INDEX_LEVEL_LAST; i++) {
+                if (c == LEVEL_CHARACTERS[i]) return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean priority(int level, int buffer) {
+        return (level == INDEX_LEVEL_ERROR) || (level == INDEX_LEVEL_FATAL) || ((level > -1) && (buffer == INDEX_BUFFER_CRASH));
+    }
+
+    @Override
+    protected boolean isPriority(String line) {
+        // the same decision onParse makes later, so the line isn't held up in the burst cache
+        if (line.startsWith("--------- ")) {
+            int buffer = buffer(line);
+            if (buffer > -1) mReadBuffer = buffer;
+            return false;
+        }
+        return priority(level(line), mReadBuffer);
+    }
+
+    @Override
+    public boolean onParse(LineRecord record) {
+        String line = record.text;
+        if (line.startsWith("--------- ")) {
+            int buffer = buffer(line);
+            if (buffer > -1) mBuffer = buffer;
+            return false;
+        }
+
+        int index = level(line);
+        if (index > -1) {
+            parseOrigin(record, line);
+            record.level = index;
+            record.color = LEVEL_COLORS[index];
+            record.priority = priority(index, mBuffer);
+            return true;
+        }
+        return false;
+    }
+
+    private static int number(String line, int start, int end) {
+        int ret = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if ((c >= '0') && (c <= '9')) {
+                ret = (ret * 10) + (c - '0');
+            } else if (c != ' ') {
+                return 0;
+            }
+        }
+        return ret;
+    }
+
+    private static int token(String line, int start, int skip) {
+        // start of the token after skipping 'skip' space-separated tokens
+        int i = start;
+        for (int t = 0; t <= skip; t++) {
+            while ((i < line.length()) && (line.charAt(i) == ' ')) i++;
+            if (t == skip) break;
+            while ((i < line.length()) && (line.charAt(i) != ' ')) i++;
+        }
+        return i;
+    }
+
+    private void parseOrigin(LineRecord record, String line) {
+        // pid, tid and start of the actual message, for the stack trace folder
+        if (mFormat.equals("threadtime")) {
+            // 01-02 03:04:05.678  1234  5678 E Tag: message
+            int pid = token(line, 0, 2);
+            int tid = token(line, pid, 1);
+            record.pid = number(line, pid, line.indexOf(' ', pid));
+            record.tid = number(line, tid, line.indexOf(' ', tid));
+            int p = line.indexOf(": ", tid);
+            record.body = (p > -1) ? p + 2 : line.length();
+        } else if (mFormat.equals("tag")) {
+            // E/Tag: message
+            int p = line.indexOf(": ");
+            record.body = (p > -1) ? p + 2 : line.length();
+        } else {
+            // E/Tag( 1234): message, E( 1234) message, E( 1234: 5678) message
+            int open = line.indexOf('(');
+            int close = (open > -1) ? line.indexOf(')', open) : -1;
+            if (close > -1) {
+                int colon = line.indexOf(':', open);
+                if ((colon > -1) && (colon < close)) {
+                    record.pid = number(line, open + 1, colon);
+                    record.tid = number(line, colon + 1, close);
+                } else {
+                    record.pid = number(line, open + 1, close);
                 }
+                record.body = Math.min(line.startsWith(": ", close + 1) ? close + 3 : close + 2, line.length());
             }
         }
-    }    
-    
-    public void setReady() {
-        mLock.lock();
-        try {
-            mReady = true;
-            processCache();
-        } finally {
-            mLock.unlock();
+    }
+
+    @Override
+    public boolean onFilter(LineRecord record) {
+        if (!mLevels[record.level]) return false;
+        for (String skip : mSkip) {
+            if (record.text.contains(skip)) {
+                return false;
+            }
         }
+        return !mFolder.fold(record);
+    }    
+
+    @Override
+    public void onTick() {
+        mFolder.tick();
     }
 
-    public void destroy() {
-        final Shell.Interactive shell = mShell;
-        (new Thread(new Runnable() {            
-             @Override
-             public void run() {
-                 shell.kill();
-                 shell.close();
-             }
-        })).start();
+    @Override
+    public String getStats() {
+        return super.getStats() + ", " + mFolder.getStats();
     }
 }
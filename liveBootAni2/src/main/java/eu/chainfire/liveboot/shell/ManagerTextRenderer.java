@@ -0,0 +1,74 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import eu.chainfire.libcfsurface.gl.GLHelper;
+import eu.chainfire.libcfsurface.gl.GLTextManager;
+import eu.chainfire.libcfsurface.gl.GLTextureManager;
+
+public class ManagerTextRenderer implements TextRenderer {
+    // libcfsurface's GLTextManager, which renders every line into its own texture. It does its own
+    // wrapping, so the builder is sized to whole lines; lines that are new since the last frame
+    // are handed to the manager from the GL thread.
+
+    private final ScreenBuilder mScreen;
+    private final boolean mWordWrap;
+    private final GLHelper mHelper;
+    private final GLTextManager mManager;
+    private long mSerial = 0;
+
+    public ManagerTextRenderer(ScreenBuilder screen, boolean wordWrap, GLTextureManager textureManager, int width, int height, int lineHeight) {
+        mScreen = screen;
+        mWordWrap = wordWrap;
+        mHelper = new GLHelper(width, height, GLHelper.getDefaultVMatrix());
+        mManager = new GLTextManager(textureManager, mHelper, width, height, lineHeight);
+        mScreen.resize(height / lineHeight, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void draw() {
+        ScreenModel model = mScreen.get();
+        if (model.getSerial() != mSerial) {
+            for (int row = 0; row < model.getCount(); row++) {
+                int slot = model.getSlot(row);
+                if (model.getSerial(slot) > mSerial) {
+                    mManager.add(model.getRowText(slot), model.getColor(slot), mWordWrap);
+                }
+            }
+            mSerial = model.getSerial();
+        }
+        mManager.draw();
+    }
+
+    @Override
+    public void resize(int width, int height, int lineHeight) {
+        mManager.resize(-1, -1, width, height, -1, lineHeight);
+        mHelper.resize(width, height);
+        mScreen.resize(height / lineHeight, Integer.MAX_VALUE);
+        mSerial = mScreen.get().getSerial(); // the manager kept its lines
+    }
+
+    @Override
+    public String getStats() {
+        return null;
+    }
+
+    @Override
+    public void destroy() {
+        mManager.destroy();
+    }
+}
@@ -0,0 +1,55 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import eu.chainfire.librootjava.Logger;
+
+public class NativeWait {
+    // libliveboot.so (src/main/cpp), loaded by path as we run from app_process, not as the app.
+    // Everything here blocks the calling thread, use from dedicated threads only.
+
+    private static boolean sLoaded = false;
+
+    public static synchronized boolean load(String path) {
+        if (sLoaded) return true;
+        try {
+            System.load(path);
+            sLoaded = true;
+        } catch (Throwable t) {
+            Logger.dp("NATIVE", "%s: %s", path, t.getMessage());
+        }
+        return sLoaded;
+    }
+
+    public static synchronized boolean isLoaded() {
+        return sLoaded;
+    }
+
+    // global property serial, -1 if unavailable
+    public static native long propertySerial();
+
+    // returns the new serial, the old one on timeout (not honored before Android 8), -1 if unavailable
+    public static native long propertyWait(long serial, int timeoutMs);
+
+    // returns the fd, or -errno
+    public static native int pidfdOpen(int pid);
+
+    // returns 1 if the process exited, 0 on timeout, -errno on error
+    public static native int pidfdWait(int fd, int timeoutMs);
+
+    public static native void close(int fd);
+}
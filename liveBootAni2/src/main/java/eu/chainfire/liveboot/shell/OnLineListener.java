@@ -17,6 +17,5 @@
 package eu.chainfire.liveboot.shell;
 
 public interface OnLineListener {
-    public void onLine(Object sender, String text, int color);
     public void onLog(Object sender, String text);
 }
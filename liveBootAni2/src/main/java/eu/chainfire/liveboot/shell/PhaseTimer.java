@@ -0,0 +1,103 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import eu.chainfire.librootjava.Logger;
+
+public class PhaseTimer {
+    // Startup phase timing, from app_process launch to the first frame. Each phase is recorded
+    // once, with the time since main() and since the previous phase. The time between the
+    // process being started and main() is derived from /proc/self/stat, at dump time.
+    //
+    // Sidecar format, tab separated: "version <versionCode>", "launch <ms>", then per phase
+    // "phase <name> <ms since main> <ms since previous phase>".
+
+    private static final List<String> sNames = new ArrayList<String>();
+    private static final List<Long> sTimes = new ArrayList<Long>();
+    private static long sStart = 0;
+    private static long sStartElapsed = 0;
+
+    public static synchronized void mark(String name) {
+        long now = System.nanoTime();
+        if (sStart == 0) {
+            sStart = now;
+            sStartElapsed = SystemClock.elapsedRealtime();
+        }
+        if (sNames.contains(name)) return;
+        sNames.add(name);
+        sTimes.add(now);
+    }
+
+    public static synchronized double between(String from, String to) {
+        // ms, -1 if either phase wasn't recorded
+        int i = sNames.indexOf(from);
+        int j = sNames.indexOf(to);
+        if ((i == -1) || (j == -1)) return -1;
+        return (sTimes.get(j) - sTimes.get(i)) / 1000000.0d;
+    }
+
+    private static long getLaunchToMain() {
+        // process start time is in clock ticks since boot, on the same clock as elapsedRealtime
+        ProcessScanner.Entry self = (new ProcessScanner()).get(android.os.Process.myPid());
+        long ticks = Os.sysconf(OsConstants._SC_CLK_TCK);
+        if ((self == null) || (ticks <= 0)) return -1;
+        return sStartElapsed - ((self.startTime * 1000L) / ticks);
+    }
+
+    public static synchronized List<String> dump() {
+        List<String> ret = new ArrayList<String>();
+        ret.add(String.format(Locale.ENGLISH, "phase: launch-main %dms", getLaunchToMain()));
+        long previous = sStart;
+        for (int i = 0; i < sNames.size(); i++) {
+            long time = sTimes.get(i);
+            ret.add(String.format(Locale.ENGLISH, "phase: %s %.1fms (+%.1fms)", sNames.get(i), (time - sStart) / 1000000.0d, (time - previous) / 1000000.0d));
+            previous = time;
+        }
+        return ret;
+    }
+
+    public static synchronized void write(String filename, int versionCode) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("version\t").append(versionCode).append('\n');
+            sb.append("launch\t").append(getLaunchToMain()).append('\n');
+            long previous = sStart;
+            for (int i = 0; i < sNames.size(); i++) {
+                long time = sTimes.get(i);
+                sb.append(String.format(Locale.ENGLISH, "phase\t%s\t%.3f\t%.3f\n", sNames.get(i), (time - sStart) / 1000000.0d, (time - previous) / 1000000.0d));
+                previous = time;
+            }
+            FileOutputStream os = new FileOutputStream(filename, false);
+            try {
+                os.write(sb.toString().getBytes());
+            } finally {
+                os.close();
+            }
+        } catch (Exception e) {
+            Logger.ex(e);
+        }
+    }
+}
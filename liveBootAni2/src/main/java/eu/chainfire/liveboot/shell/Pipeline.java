@@ -0,0 +1,433 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import eu.chainfire.librootjava.Logger;
+
+public class Pipeline {
+    // Disruptor-style ring of preallocated LineRecord slots. Lines are pulled in batches from the
+    // registered LogSources by the read thread (or published directly), then passed through parse,
+    // filter and layout stages, each running on its own thread and only following the sequence of
+    // the stage before it. There are no locks between stages, so a slow layout overlaps with
+    // reading and parsing.
+    //
+    // Records flagged as priority by a handler are diverted at the filter stage into a small
+    // separate lane, which the layout stage drains before (and while pacing) anything else.
+    // Handlers may also inject new records into that lane from their filter callbacks.
+
+    public interface Handler {
+        public boolean onParse(LineRecord record);
+        public boolean onFilter(LineRecord record);
+        public void onTick(); // filter thread, after each batch and before going idle
+    }
+
+    public interface Consumer {
+        public void onLayout(LineRecord record);
+    }
+
+    public static final int STAGE_READ      = 0;
+    public static final int STAGE_PARSE     = 1;
+    public static final int STAGE_FILTER    = 2;
+    public static final int STAGE_LAYOUT    = 3;
+    public static final int STAGES          = 4;
+
+    public static final String[] STAGE_NAMES = new String[] { "read", "parse", "filter", "layout" };
+
+    private static final int SPIN_TRIES = 64;
+    private static final long PARK_NANOS = 50L * 1000L * 1000L;
+    private static final long PARK_FULL_NANOS = 100L * 1000L;
+    private static final int LANE_SIZE = 64;
+    private static final int MAX_HANDLERS = 16;
+    private static final int BATCH_SIZE = 64;
+
+    private final LineRecord[] mSlots;
+    private final int mMask;
+    private final AtomicLong mCursor = new AtomicLong(-1);
+    private final AtomicLongArray mAvailable;
+    private final Stage[] mStages = new Stage[STAGES];
+    private final Consumer mConsumer;
+    private volatile boolean mStopped = false;
+
+    private final CopyOnWriteArrayList<LogSource> mSources = new CopyOnWriteArrayList<LogSource>();
+    private final RecordBuffer mBatch;
+    private final Thread mReader;
+    private volatile boolean mReaderSleeping = false;
+
+    private final LineRecord[] mLane = new LineRecord[LANE_SIZE];
+    private final AtomicLong mLaneWrite = new AtomicLong(0);
+    private final AtomicLong mLaneRead = new AtomicLong(0);
+    private boolean mLaneDraining = false;
+
+    // only written by the layout thread
+    private volatile long mStatRecords = 0;
+    private volatile long mStatDropped = 0;
+    private final long[] mStatTotal = new long[STAGES];
+    private final long[] mStatMax = new long[STAGES];
+
+    public Pipeline(Consumer consumer, int capacity) {
+        int size = 1;
+        while (size < capacity) size <<= 1;
+
+        mConsumer = consumer;
+        mSlots = new LineRecord[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new LineRecord();
+        }
+        mMask = size - 1;
+        mAvailable = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mAvailable.set(i, -1);
+        }
+        for (int i = 0; i < LANE_SIZE; i++) {
+            mLane[i] = new LineRecord();
+        }
+
+        for (int i = STAGE_PARSE; i < STAGES; i++) {
+            mStages[i] = new Stage(i);
+        }
+
+        mBatch = new RecordBuffer(Math.min(BATCH_SIZE, size));
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "LiveBoot " + STAGE_NAMES[STAGE_READ]);
+        mReader.setDaemon(true);
+    }
+
+    public void start() {
+        mReader.start();
+        for (int i = STAGE_PARSE; i < STAGES; i++) {
+            mStages[i].mThread.start();
+        }
+    }
+
+    public void stop() {
+        mStopped = true;
+        LockSupport.unpark(mReader);
+        for (int i = STAGE_PARSE; i < STAGES; i++) {
+            LockSupport.unpark(mStages[i].mThread);
+        }
+    }
+
+    public void addSource(LogSource source) {
+        mSources.addIfAbsent(source);
+        wakeReader();
+    }
+
+    public void removeSource(LogSource source) {
+        mSources.remove(source);
+    }
+
+    public void wakeReader() {
+        if (mReaderSleeping) LockSupport.unpark(mReader);
+    }
+
+    private boolean haveInput() {
+        for (LogSource source : mSources) {
+            if (source.hasBatch()) return true;
+            if (source.holdsOthers()) break;
+        }
+        return false;
+    }
+
+    private void read() {
+        // round-robin over the sources, a batch at a time, so one chatty source can't starve another
+        while (!mStopped) {
+            int total = 0;
+            for (LogSource source : mSources) {
+                int count = 0;
+                try {
+                    count = source.readBatch(mBatch);
+                } catch (Exception e) {
+                    Logger.ex(e);
+                }
+                if (count > 0) {
+                    publishBatch(source, source, mBatch);
+                    total += count;
+                }
+                mBatch.clear();
+                if (source.holdsOthers()) break;
+            }
+            if (total == 0) {
+                mReaderSleeping = true;
+                try {
+                    if (!mStopped && !haveInput()) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                } finally {
+                    mReaderSleeping = false;
+                }
+            }
+        }
+    }
+
+    public void publish(Handler handler, Object sender, String text, int color) {
+        long received = System.nanoTime();
+        long sequence = mCursor.incrementAndGet();
+        Stage last = mStages[STAGES - 1];
+        while (sequence - mSlots.length > last.mSequence.get()) {
+            if (mStopped) return;
+            LockSupport.parkNanos(PARK_FULL_NANOS);
+        }
+
+        int index = (int)sequence & mMask;
+        LineRecord record = mSlots[index];
+        record.set(handler, sender, text, color, received);
+        record.done[STAGE_READ] = System.nanoTime();
+        mAvailable.set(index, sequence);
+        mStages[STAGE_PARSE].wake();
+    }
+
+    private void publishBatch(Handler handler, Object sender, RecordBuffer batch) {
+        // claims the whole batch at once, batch size never exceeds the ring size
+        int count = batch.count;
+        long last = mCursor.addAndGet(count);
+        long first = last - count + 1;
+        Stage layout = mStages[STAGES - 1];
+        while (last - mSlots.length > layout.mSequence.get()) {
+            if (mStopped) return;
+            LockSupport.parkNanos(PARK_FULL_NANOS);
+        }
+
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long sequence = first + i;
+            int index = (int)sequence & mMask;
+            LineRecord record = mSlots[index];
+            record.set(handler, sender, batch.text[i], batch.color[i], batch.received[i]);
+            record.done[STAGE_READ] = now;
+            mAvailable.set(index, sequence);
+        }
+        mStages[STAGE_PARSE].wake();
+    }
+
+    private LineRecord claimLane() {
+        // filter thread only
+        long write = mLaneWrite.get();
+        if (write - mLaneRead.get() >= LANE_SIZE) return null;
+        return mLane[(int)write & (LANE_SIZE - 1)];
+    }
+
+    private void publishLane() {
+        mLaneWrite.set(mLaneWrite.get() + 1);
+        mStages[STAGE_LAYOUT].wake();
+    }
+
+    private boolean divert(LineRecord record) {
+        LineRecord slot = claimLane();
+        if (slot == null) return false;
+
+        slot.set(record.handler, record.sender, record.text, record.color, record.received);
+        slot.level = record.level;
+        slot.priority = true;
+        System.arraycopy(record.done, 0, slot.done, 0, STAGE_FILTER);
+        slot.done[STAGE_FILTER] = System.nanoTime();
+        publishLane();
+        return true;
+    }
+
+    public boolean inject(Handler handler, Object sender, String text, int color, boolean priority) {
+        // only from Handler.onFilter or Handler.onTick
+        LineRecord slot = claimLane();
+        if (slot == null) return false;
+
+        long now = System.nanoTime();
+        slot.set(handler, sender, text, color, now);
+        slot.priority = priority;
+        for (int i = 0; i < STAGE_LAYOUT; i++) {
+            slot.done[i] = now;
+        }
+        publishLane();
+        return true;
+    }
+
+    private boolean haveLane() {
+        return mLaneWrite.get() > mLaneRead.get();
+    }
+
+    public void drainPriority() {
+        // layout thread only, may be called by the Consumer while it is pacing a normal record
+        if (mLaneDraining) return;
+        mLaneDraining = true;
+        try {
+            long read = mLaneRead.get();
+            long write = mLaneWrite.get();
+            while (read < write) {
+                LineRecord slot = mLane[(int)read & (LANE_SIZE - 1)];
+                try {
+                    mConsumer.onLayout(slot);
+                } catch (Exception e) {
+                    Logger.ex(e);
+                }
+                slot.done[STAGE_LAYOUT] = System.nanoTime();
+                account(slot);
+                slot.clear();
+                read++;
+                mLaneRead.set(read);
+            }
+        } finally {
+            mLaneDraining = false;
+        }
+    }
+
+    public String getStats() {
+        long records = mStatRecords;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH, "pipeline: %d lines (%d dropped)", records, mStatDropped));
+        for (int i = 0; i < STAGES; i++) {
+            sb.append(String.format(Locale.ENGLISH, "; %s avg %.3fms max %.3fms",
+                    STAGE_NAMES[i],
+                    records > 0 ? (double)mStatTotal[i] / (double)records / 1000000.0d : 0.0d,
+                    (double)mStatMax[i] / 1000000.0d
+            ));
+        }
+        return sb.toString();
+    }
+
+    private void account(LineRecord record) {
+        long previous = record.received;
+        for (int i = 0; i < STAGES; i++) {
+            long latency = record.done[i] - previous;
+            mStatTotal[i] += latency;
+            if (latency > mStatMax[i]) mStatMax[i] = latency;
+            previous = record.done[i];
+        }
+        if (record.drop) mStatDropped++;
+        mStatRecords++;
+    }
+
+    private class Stage implements Runnable {
+        private final int mIndex;
+        private final Thread mThread;
+        private final AtomicLong mSequence = new AtomicLong(-1);
+        private volatile boolean mSleeping = false;
+        private final Handler[] mHandlers = new Handler[MAX_HANDLERS];
+        private int mHandlerCount = 0;
+
+        public Stage(int index) {
+            mIndex = index;
+            mThread = new Thread(this, "LiveBoot " + STAGE_NAMES[index]);
+            mThread.setDaemon(true);
+        }
+
+        private long available(long next) {
+            if (mIndex == STAGE_PARSE) {
+                // publishers may finish out of order, only hand out the contiguous part
+                long limit = next + mSlots.length;
+                long sequence = next;
+                while ((sequence < limit) && (mAvailable.get((int)sequence & mMask) == sequence)) {
+                    sequence++;
+                }
+                return sequence - 1;
+            }
+            return mStages[mIndex - 1].mSequence.get();
+        }
+
+        private boolean pending(long next) {
+            return (available(next) >= next) || ((mIndex == STAGE_LAYOUT) && haveLane());
+        }
+
+        private void track(Handler handler) {
+            if (handler == null) return;
+            for (int i = 0; i < mHandlerCount; i++) {
+                if (mHandlers[i] == handler) return;
+            }
+            if (mHandlerCount < MAX_HANDLERS) mHandlers[mHandlerCount++] = handler;
+        }
+
+        private void tick() {
+            for (int i = 0; i < mHandlerCount; i++) {
+                try {
+                    mHandlers[i].onTick();
+                } catch (Exception e) {
+                    Logger.ex(e);
+                }
+            }
+        }
+
+        private void idle(long next) {
+            for (int i = 0; i < SPIN_TRIES; i++) {
+                if (pending(next)) return;
+                Thread.yield();
+            }
+            if (mIndex == STAGE_FILTER) tick();
+            mSleeping = true;
+            try {
+                if (!mStopped && !pending(next)) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+            } finally {
+                mSleeping = false;
+            }
+        }
+
+        public void wake() {
+            if (mSleeping) LockSupport.unpark(mThread);
+        }
+
+        private void process(LineRecord record) {
+            try {
+                if (mIndex == STAGE_PARSE) {
+                    if ((record.handler != null) && !record.drop) record.drop = !record.handler.onParse(record);
+                } else if (mIndex == STAGE_FILTER) {
+                    track(record.handler);
+                    if ((record.handler != null) && !record.drop) record.drop = !record.handler.onFilter(record);
+                    if (record.priority && !record.drop) record.diverted = divert(record);
+                } else if (mIndex == STAGE_LAYOUT) {
+                    if (!record.drop && !record.diverted) mConsumer.onLayout(record);
+                }
+            } catch (Exception e) {
+                record.drop = true;
+                Logger.ex(e);
+            }
+            record.done[mIndex] = System.nanoTime();
+            if (mIndex == STAGE_LAYOUT) {
+                if (!record.diverted) account(record);
+                record.clear();
+            }
+        }
+
+        @Override
+        public void run() {
+            long next = mSequence.get() + 1;
+            while (!mStopped) {
+                if (mIndex == STAGE_LAYOUT) drainPriority();
+                long available = available(next);
+                if (available < next) {
+                    idle(next);
+                    continue;
+                }
+                for (long sequence = next; sequence <= available; sequence++) {
+                    if (mIndex == STAGE_LAYOUT) drainPriority();
+                    process(mSlots[(int)sequence & mMask]);
+                }
+                mSequence.set(available);
+                if (mIndex < STAGES - 1) mStages[mIndex + 1].wake();
+                if (mIndex == STAGE_FILTER) tick();
+                next = available + 1;
+            }
+        }
+    }
+}
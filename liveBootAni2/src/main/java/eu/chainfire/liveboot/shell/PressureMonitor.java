@@ -0,0 +1,318 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.graphics.Color;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import eu.chainfire.librootjava.Logger;
+
+public class PressureMonitor extends LogSource {
+    // Annotates the log with CPU, IO and memory stalls. PSI triggers are registered on
+    // /proc/pressure/* and waited on with poll(), so nothing runs unless the kernel tells us a
+    // threshold was crossed. Kernels that have PSI but no triggers get the PSI totals sampled
+    // every WINDOW, kernels without PSI get the iowait from /proc/stat sampled instead.
+    //
+    // The reported stall is the growth of the stall total since a baseline reading, over the
+    // real time span since that reading. With triggers the baseline is taken again whenever it
+    // is a WINDOW old (poll() times out that often) and after each trip, so stall building up
+    // below the threshold during quiet periods isn't blamed on the window that trips.
+
+    private static final int COLOR = Color.CYAN;
+
+    private static final long THRESHOLD_US = 150L * 1000L;
+    private static final long WINDOW_US = 1000L * 1000L;
+    private static final int POLL_TIMEOUT = 1000;
+
+    private static final String[] RESOURCES = new String[] { "cpu", "io", "memory" };
+    private static final String[] NAMES = new String[] { "CPU", "IO", "Memory" };
+
+    private static class Resource {
+        public String name;
+        public String path;
+        public FileDescriptor fd = null;
+        public long total = -1;
+        public long time = 0; // of total, us
+    }
+
+    private final File mRoot;
+    private volatile boolean mStopped = false;
+    private Thread mThread = null;
+    private final byte[] mBuffer = new byte[256];
+
+    public PressureMonitor(OnLineListener onLineListener, Pipeline pipeline) {
+        this(onLineListener, pipeline, new File("/"));
+    }
+
+    public PressureMonitor(OnLineListener onLineListener, Pipeline pipeline, File root) {
+        super("pressure", onLineListener, pipeline, 64, true);
+        mRoot = root;
+    }
+
+    @Override
+    protected void onStart() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    monitor();
+                } catch (Exception e) {
+                    Logger.ex(e);
+                }
+            }
+        }, "LiveBoot pressure");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @Override
+    protected void onStop() {
+        mStopped = true;
+        Thread thread = mThread;
+        if (thread != null) thread.interrupt();
+    }
+
+    private void monitor() {
+        List<Resource> resources = new ArrayList<Resource>();
+        for (int i = 0; i < RESOURCES.length; i++) {
+            Resource resource = new Resource();
+            resource.name = NAMES[i];
+            resource.path = (new File(mRoot, "proc/pressure/" + RESOURCES[i])).getAbsolutePath();
+            if ((new File(resource.path)).exists()) resources.add(resource);
+        }
+
+        if (resources.size() == 0) {
+            Logger.dp("PSI", "not available, sampling iowait");
+            sampleIOWait();
+            return;
+        }
+
+        boolean triggers = true;
+        for (Resource resource : resources) {
+            if (!register(resource)) {
+                triggers = false;
+                break;
+            }
+        }
+        try {
+            if (triggers) {
+                Logger.dp("PSI", "triggers");
+                waitTriggers(resources);
+            } else {
+                Logger.dp("PSI", "no triggers, sampling");
+                samplePressure(resources);
+            }
+        } finally {
+            for (Resource resource : resources) {
+                close(resource);
+            }
+        }
+    }
+
+    private boolean register(Resource resource) {
+        try {
+            resource.fd = Os.open(resource.path, OsConstants.O_RDWR | OsConstants.O_NONBLOCK | OsConstants.O_CLOEXEC, 0);
+            byte[] trigger = String.format(Locale.ENGLISH, "some %d %d\0", THRESHOLD_US, WINDOW_US).getBytes();
+            Os.write(resource.fd, trigger, 0, trigger.length);
+            resource.total = readTotal(resource);
+            resource.time = now();
+            return true;
+        } catch (Exception e) {
+            // EINVAL/EOPNOTSUPP without trigger support
+            Logger.dp("PSI", "%s: %s", resource.path, e.getMessage());
+            return false;
+        }
+    }
+
+    private void close(Resource resource) {
+        if (resource.fd != null) {
+            try {
+                Os.close(resource.fd);
+            } catch (Exception e) {
+            }
+            resource.fd = null;
+        }
+    }
+
+    private void waitTriggers(List<Resource> resources) {
+        StructPollfd[] fds = new StructPollfd[resources.size()];
+        for (int i = 0; i < fds.length; i++) {
+            fds[i] = new StructPollfd();
+            fds[i].fd = resources.get(i).fd;
+            fds[i].events = (short)OsConstants.POLLPRI;
+        }
+        while (!mStopped) {
+            int ready;
+            try {
+                ready = Os.poll(fds, POLL_TIMEOUT);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) continue;
+                Logger.ex(e);
+                return;
+            }
+            long now = now();
+            for (int i = 0; i < fds.length; i++) {
+                Resource resource = resources.get(i);
+                short revents = fds[i].revents;
+                fds[i].revents = 0;
+                if ((ready > 0) && ((revents & OsConstants.POLLERR) != 0)) {
+                    // trigger went away
+                    Logger.dp("PSI", "%s: POLLERR", resource.path);
+                    return;
+                } else if ((ready > 0) && ((revents & OsConstants.POLLPRI) != 0)) {
+                    long total = readTotal(resource);
+                    if ((total >= 0) && (resource.total >= 0)) {
+                        annotate(resource.name, total - resource.total, now - resource.time);
+                    }
+                    resource.total = total;
+                    resource.time = now;
+                } else if (now - resource.time >= WINDOW_US) {
+                    resource.total = readTotal(resource);
+                    resource.time = now;
+                }
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000L;
+    }
+
+    private void samplePressure(List<Resource> resources) {
+        for (Resource resource : resources) {
+            resource.total = readTotal(resource);
+            resource.time = now();
+        }
+        while (!mStopped && sleep(WINDOW_US / 1000L)) {
+            long now = now();
+            for (Resource resource : resources) {
+                long total = readTotal(resource);
+                if ((total >= 0) && (resource.total >= 0) && (total - resource.total >= THRESHOLD_US)) {
+                    annotate(resource.name, total - resource.total, now - resource.time);
+                }
+                resource.total = total;
+                resource.time = now;
+            }
+        }
+    }
+
+    private void sampleIOWait() {
+        // iowait is summed over all CPUs, in clock ticks
+        String path = (new File(mRoot, "proc/stat")).getAbsolutePath();
+        long ticks = Os.sysconf(OsConstants._SC_CLK_TCK);
+        long cpus = Os.sysconf(OsConstants._SC_NPROCESSORS_CONF);
+        if (ticks <= 0) ticks = 100;
+        if (cpus <= 0) cpus = 1;
+
+        long last = readIOWait(path);
+        long time = now();
+        while ((last >= 0) && !mStopped && sleep(WINDOW_US / 1000L)) {
+            long iowait = readIOWait(path);
+            if (iowait < 0) return;
+            long now = now();
+            long stall = ((iowait - last) * 1000L * 1000L) / ticks / cpus;
+            if (stall >= THRESHOLD_US) {
+                annotate("IO", stall, now - time);
+            }
+            last = iowait;
+            time = now;
+        }
+    }
+
+    private boolean sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void annotate(String name, long stall, long span) {
+        // stall and span in us
+        String line = String.format(Locale.ENGLISH, "%s stall %dms/%.1fs", name, stall / 1000L, span / 1000000.0f);
+        log(line);
+        offer(line, COLOR);
+        flush(); // annotations are sporadic, don't wait for a burst to end
+    }
+
+    private String read(FileDescriptor fd) throws Exception {
+        Os.lseek(fd, 0, OsConstants.SEEK_SET);
+        int length = 0;
+        while (length < mBuffer.length) {
+            int read = Os.read(fd, mBuffer, length, mBuffer.length - length);
+            if (read <= 0) break;
+            length += read;
+        }
+        return new String(mBuffer, 0, length);
+    }
+
+    private long readTotal(Resource resource) {
+        // "some avg10=0.00 avg60=0.00 avg300=0.00 total=12345"
+        FileDescriptor fd = resource.fd;
+        boolean opened = false;
+        try {
+            if (fd == null) {
+                fd = Os.open(resource.path, OsConstants.O_RDONLY | OsConstants.O_CLOEXEC, 0);
+                opened = true;
+            }
+            String content = read(fd);
+            if (!content.startsWith("some ")) return -1;
+            int start = content.indexOf("total=");
+            if (start == -1) return -1;
+            start += 6;
+            int end = start;
+            while ((end < content.length()) && Character.isDigit(content.charAt(end))) end++;
+            return Long.parseLong(content.substring(start, end));
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (opened) {
+                try {
+                    Os.close(fd);
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    private long readIOWait(String path) {
+        // "cpu  user nice system idle iowait ..."
+        try {
+            FileDescriptor fd = Os.open(path, OsConstants.O_RDONLY | OsConstants.O_CLOEXEC, 0);
+            try {
+                String content = read(fd);
+                if (!content.startsWith("cpu ")) return -1;
+                String[] fields = content.substring(0, content.indexOf('\n')).trim().split(" +");
+                return (fields.length > 5) ? Long.parseLong(fields[5]) : -1;
+            } finally {
+                Os.close(fd);
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class ProcessScanner {
+    // Finds processes by reading /proc/<pid>/stat (and cmdline, once per process) ourselves,
+    // rather than running ps | grep | grep -v grep in a shell. Names are cached per pid and start
+    // time, so a reused pid is noticed. Not thread-safe, the buffer is shared between calls.
+
+    public static class Entry {
+        public int pid;
+        public int ppid;
+        public long startTime;
+        public String name;
+    }
+
+    private final File mProc;
+    private final byte[] mBuffer = new byte[4096];
+    private final HashMap<Integer, Entry> mCache = new HashMap<Integer, Entry>();
+
+    public ProcessScanner() {
+        this(new File("/proc"));
+    }
+
+    public ProcessScanner(File proc) {
+        mProc = proc;
+    }
+
+    private int read(File file) {
+        try {
+            FileInputStream is = new FileInputStream(file);
+            try {
+                int length = 0;
+                int read;
+                while ((length < mBuffer.length) && ((read = is.read(mBuffer, length, mBuffer.length - length)) > 0)) {
+                    length += read;
+                }
+                return length;
+            } finally {
+                is.close();
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public Entry get(int pid) {
+        // "1234 (comm with spaces) S 1 ...", start time is field 22
+        File dir = new File(mProc, String.valueOf(pid));
+        int length = read(new File(dir, "stat"));
+        if (length <= 0) {
+            mCache.remove(pid);
+            return null;
+        }
+        int open = -1;
+        int close = -1;
+        for (int i = 0; i < length; i++) {
+            if (mBuffer[i] == '(') {
+                if (open == -1) open = i;
+            } else if (mBuffer[i] == ')') {
+                close = i;
+            }
+        }
+        if ((open == -1) || (close == -1)) return null;
+
+        int ppid = 0;
+        long startTime = 0;
+        int field = 3; // state
+        int i = close + 2;
+        while ((i < length) && (field <= 22)) {
+            int start = i;
+            while ((i < length) && (mBuffer[i] != ' ') && (mBuffer[i] != '\n')) i++;
+            if (field == 4) ppid = (int)number(start, i);
+            if (field == 22) startTime = number(start, i);
+            field++;
+            i++;
+        }
+
+        Entry entry = mCache.get(pid);
+        if ((entry != null) && (entry.startTime == startTime)) {
+            entry.ppid = ppid;
+            return entry;
+        }
+
+        entry = new Entry();
+        entry.pid = pid;
+        entry.ppid = ppid;
+        entry.startTime = startTime;
+        String comm = new String(mBuffer, open + 1, close - open - 1);
+
+        // argv[0] if there is one, kernel threads have an empty cmdline
+        length = read(new File(dir, "cmdline"));
+        int end = 0;
+        while ((end < length) && (mBuffer[end] != 0)) end++;
+        entry.name = (end > 0) ? new String(mBuffer, 0, end) : comm;
+
+        mCache.put(pid, entry);
+        return entry;
+    }
+
+    private long number(int start, int end) {
+        long ret = 0;
+        for (int i = start; i < end; i++) {
+            byte b = mBuffer[i];
+            if ((b < '0') || (b > '9')) return ret;
+            ret = (ret * 10) + (b - '0');
+        }
+        return ret;
+    }
+
+    public List<Entry> scan() {
+        List<Entry> ret = new ArrayList<Entry>();
+        String[] entries = mProc.list();
+        if (entries == null) return ret;
+        for (String name : entries) {
+            if ((name.length() == 0) || (name.charAt(0) < '0') || (name.charAt(0) > '9')) continue;
+            int pid;
+            try {
+                pid = Integer.parseInt(name);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Entry entry = get(pid);
+            if (entry != null) ret.add(entry);
+        }
+        if (mCache.size() > ret.size() * 2) {
+            // forget exited processes now and then
+            HashMap<Integer, Entry> alive = new HashMap<Integer, Entry>();
+            for (Entry entry : ret) alive.put(entry.pid, entry);
+            mCache.clear();
+            mCache.putAll(alive);
+        }
+        return ret;
+    }
+
+    public List<Integer> findByName(String match) {
+        List<Integer> ret = new ArrayList<Integer>();
+        for (Entry entry : scan()) {
+            if (entry.name.contains(match)) ret.add(entry.pid);
+        }
+        return ret;
+    }
+
+    public List<Integer> findChildren(int ppid) {
+        List<Integer> ret = new ArrayList<Integer>();
+        for (Entry entry : scan()) {
+            if ((entry.ppid == ppid) && (entry.pid != ppid)) ret.add(entry.pid);
+        }
+        return ret;
+    }
+
+    public boolean isAlive(int pid, String match) {
+        Entry entry = get(pid);
+        return (entry != null) && entry.name.contains(match);
+    }
+
+    public void kill(int pid) {
+        android.os.Process.killProcess(pid);
+    }
+}
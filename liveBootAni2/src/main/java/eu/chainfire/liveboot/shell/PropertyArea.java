@@ -0,0 +1,222 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+public class PropertyArea {
+    // Read-only view of one of bionic's property areas (/dev/__properties__/*), memory-mapped.
+    //
+    // prop_area: u32 bytes_used, u32 serial, u32 magic, u32 version, u32 reserved[28], data
+    // prop_bt (trie node, one per name segment, siblings form a binary tree):
+    //   u32 namelen, u32 prop, u32 left, u32 right, u32 children, char name[namelen + 1]
+    // prop_info: u32 serial (value length << 24 | flags), char value[92], char name[]
+    // All offsets are relative to the start of data.
+
+    private static final int MAGIC = 0x504f5250;
+    private static final int VERSION = 0xfc6ed0ab;
+
+    private static final int HEADER_SIZE = 128;
+    private static final int OFFSET_SERIAL = 4;
+    private static final int OFFSET_MAGIC = 8;
+    private static final int OFFSET_VERSION = 12;
+
+    private static final int BT_NAMELEN = 0;
+    private static final int BT_PROP = 4;
+    private static final int BT_LEFT = 8;
+    private static final int BT_RIGHT = 12;
+    private static final int BT_CHILDREN = 16;
+    private static final int BT_NAME = 20;
+
+    private static final int PROP_VALUE_MAX = 92;
+    private static final int INFO_VALUE = 4;
+    private static final int INFO_LONG_OFFSET = INFO_VALUE + 56;
+    private static final int INFO_NAME = INFO_VALUE + PROP_VALUE_MAX;
+    private static final int SERIAL_DIRTY = 1;
+    private static final int SERIAL_LONG = 1 << 16;
+
+    private static final int MAX_DEPTH = 1024;
+
+    private final String mPath;
+    private final MappedByteBuffer mBuffer;
+    private final int mSize;
+
+    public static PropertyArea open(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if ((size <= HEADER_SIZE) || (size > Integer.MAX_VALUE)) return null;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if ((buffer.getInt(OFFSET_MAGIC) != MAGIC) || (buffer.getInt(OFFSET_VERSION) != VERSION)) return null;
+                return new PropertyArea(file.getAbsolutePath(), buffer, (int)size);
+            } finally {
+                // the mapping stays valid
+                raf.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private PropertyArea(String path, MappedByteBuffer buffer, int size) {
+        mPath = path;
+        mBuffer = buffer;
+        mSize = size;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public int getAreaSerial() {
+        // bumped on every change in this area, in properties_serial on every change anywhere
+        return mBuffer.getInt(OFFSET_SERIAL);
+    }
+
+    private boolean valid(int offset, int length) {
+        return (offset > 0) && (HEADER_SIZE + offset + length <= mSize);
+    }
+
+    private int getInt(int offset) {
+        return mBuffer.getInt(HEADER_SIZE + offset);
+    }
+
+    private int compare(String segment, int start, int end, int node) {
+        // shorter names sort first, then bytewise
+        int length = end - start;
+        int namelen = getInt(node + BT_NAMELEN);
+        if (length != namelen) return length < namelen ? -1 : 1;
+        for (int i = 0; i < length; i++) {
+            int a = segment.charAt(start + i) & 0xFF;
+            int b = mBuffer.get(HEADER_SIZE + node + BT_NAME + i) & 0xFF;
+            if (a != b) return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private int findChild(int parent, String name, int start, int end) {
+        int node = getInt(parent + BT_CHILDREN);
+        for (int depth = 0; valid(node, BT_NAME) && (depth < MAX_DEPTH); depth++) {
+            int compare = compare(name, start, end, node);
+            if (compare == 0) return node;
+            node = getInt(node + (compare < 0 ? BT_LEFT : BT_RIGHT));
+        }
+        return 0;
+    }
+
+    private int findNode(String name, int length) {
+        // trie node for the first length characters of name, 0 if not present
+        int node = 0; // root node is at the start of data
+        int start = 0;
+        while (start < length) {
+            int end = name.indexOf('.', start);
+            if ((end == -1) || (end > length)) end = length;
+            node = findChild(node, name, start, end);
+            if (node == 0) return 0;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    public int find(String name) {
+        // offset of the prop_info, 0 if not (yet) present
+        int node = findNode(name, name.length());
+        if (node == 0) return 0;
+        int info = getInt(node + BT_PROP);
+        return valid(info, INFO_NAME) ? info : 0;
+    }
+
+    public void collect(String prefix, List<Integer> out) {
+        // all prop_infos under prefix; the part after the last '.' matches names starting with it
+        int dot = prefix.lastIndexOf('.');
+        int parent = (dot == -1) ? 0 : findNode(prefix, dot);
+        if ((dot > -1) && (parent == 0)) return;
+        collectSiblings(getInt(parent + BT_CHILDREN), prefix.substring(dot + 1), out, 0);
+    }
+
+    private void collectSiblings(int node, String match, List<Integer> out, int depth) {
+        if (!valid(node, BT_NAME) || (depth > MAX_DEPTH)) return;
+        collectSiblings(getInt(node + BT_LEFT), match, out, depth + 1);
+        if (startsWith(node, match)) collectAll(node, out, depth + 1);
+        collectSiblings(getInt(node + BT_RIGHT), match, out, depth + 1);
+    }
+
+    private void collectAll(int node, List<Integer> out, int depth) {
+        int info = getInt(node + BT_PROP);
+        if (valid(info, INFO_NAME)) out.add(info);
+        collectSiblings(getInt(node + BT_CHILDREN), "", out, depth);
+    }
+
+    private boolean startsWith(int node, String match) {
+        int namelen = getInt(node + BT_NAMELEN);
+        if (namelen < match.length()) return false;
+        for (int i = 0; i < match.length(); i++) {
+            if (mBuffer.get(HEADER_SIZE + node + BT_NAME + i) != (byte)match.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public int getSerial(int info) {
+        return getInt(info);
+    }
+
+    private String string(int offset, int maxLength) {
+        byte[] bytes = new byte[maxLength];
+        int length = 0;
+        while ((length < maxLength) && (HEADER_SIZE + offset + length < mSize)) {
+            byte b = mBuffer.get(HEADER_SIZE + offset + length);
+            if (b == 0) break;
+            bytes[length++] = b;
+        }
+        return new String(bytes, 0, length);
+    }
+
+    public String getName(int info) {
+        return string(info + INFO_NAME, PROP_VALUE_MAX * 4);
+    }
+
+    public String getValue(int info) {
+        // retries while the value is being written, like __system_property_read
+        for (int retry = 0; retry < 64; retry++) {
+            int serial = getInt(info);
+            if ((serial & SERIAL_DIRTY) != 0) {
+                Thread.yield();
+                continue;
+            }
+            String value;
+            if ((serial & SERIAL_LONG) != 0) {
+                value = string(info + getInt(info + INFO_LONG_OFFSET), 4096);
+            } else {
+                byte[] bytes = new byte[serial >>> 24];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = mBuffer.get(HEADER_SIZE + info + INFO_VALUE + i);
+                }
+                value = new String(bytes);
+            }
+            if (getInt(info) == serial) return value;
+        }
+        return null;
+    }
+}
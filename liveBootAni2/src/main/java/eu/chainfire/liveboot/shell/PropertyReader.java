@@ -0,0 +1,155 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import eu.chainfire.librootjava.Logger;
+
+public class PropertyReader {
+    // System properties straight from the mapped property areas. Lookups are cached per key
+    // together with the prop_info's serial, so an unchanged property costs two memory reads.
+    // Keys that don't exist (yet) are only looked up again once the global serial changes.
+    // Falls back to SystemProperties if the areas can't be mapped.
+
+    private static final String PROPERTIES = "dev/__properties__";
+    private static final String PROPERTY_INFO = "property_info";
+    private static final String PROPERTIES_SERIAL = "properties_serial";
+
+    private static class Entry {
+        public PropertyArea area = null;
+        public int info = 0;
+        public int serial = 0;
+        public String value = null;
+        public int missSerial = 0;
+    }
+
+    private static PropertyReader instance = null;
+
+    public static synchronized PropertyReader getInstance() {
+        if (instance == null) {
+            instance = new PropertyReader(new File("/"));
+        }
+        return instance;
+    }
+
+    private final PropertyArea[] mAreas;
+    private final PropertyArea mSerialArea;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    public PropertyReader(File root) {
+        List<PropertyArea> areas = new ArrayList<PropertyArea>();
+        PropertyArea serialArea = null;
+
+        File properties = new File(root, PROPERTIES);
+        if (properties.isDirectory()) {
+            // Android 8.0+, one area per SELinux context
+            File[] files = properties.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.getName().equals(PROPERTY_INFO)) continue;
+                    PropertyArea area = PropertyArea.open(file);
+                    if (area == null) continue;
+                    if (file.getName().equals(PROPERTIES_SERIAL)) {
+                        serialArea = area;
+                    } else {
+                        areas.add(area);
+                    }
+                }
+            }
+        } else {
+            PropertyArea area = PropertyArea.open(properties);
+            if (area != null) {
+                areas.add(area);
+                serialArea = area;
+            }
+        }
+
+        if ((serialArea == null) || (areas.size() == 0)) {
+            Logger.dp("PROPERTIES", "mapping not available, using SystemProperties");
+            mAreas = null;
+            mSerialArea = null;
+        } else {
+            Logger.dp("PROPERTIES", "mapped %d areas", areas.size());
+            mAreas = areas.toArray(new PropertyArea[areas.size()]);
+            mSerialArea = serialArea;
+        }
+    }
+
+    public boolean isMapped() {
+        return mAreas != null;
+    }
+
+    public int getSerial() {
+        // changes whenever any property changes
+        return (mSerialArea != null) ? mSerialArea.getAreaSerial() : 0;
+    }
+
+    public synchronized String get(String key, String defaultValue) {
+        if (mAreas == null) return SystemProperties.get(key, defaultValue);
+
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entry.missSerial = getSerial() - 1;
+            mEntries.put(key, entry);
+        }
+        if (entry.area == null) {
+            int serial = getSerial();
+            if (serial == entry.missSerial) return defaultValue;
+            entry.missSerial = serial;
+            for (PropertyArea area : mAreas) {
+                int info = area.find(key);
+                if (info != 0) {
+                    entry.area = area;
+                    entry.info = info;
+                    entry.serial = area.getSerial(info) - 1;
+                    break;
+                }
+            }
+            if (entry.area == null) return defaultValue;
+        }
+
+        int serial = entry.area.getSerial(entry.info);
+        if ((serial != entry.serial) || (entry.value == null)) {
+            String value = entry.area.getValue(entry.info);
+            if (value == null) return (entry.value != null) ? entry.value : defaultValue;
+            entry.value = value;
+            entry.serial = serial;
+        }
+        return entry.value.length() > 0 ? entry.value : defaultValue;
+    }
+
+    public void collect(String prefix, List<PropertyArea> areas, List<Integer> infos) {
+        // all properties under prefix, see PropertyArea.collect
+        if (mAreas == null) return;
+        List<Integer> found = new ArrayList<Integer>();
+        for (PropertyArea area : mAreas) {
+            found.clear();
+            area.collect(prefix, found);
+            for (Integer info : found) {
+                areas.add(area);
+                infos.add(info);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.graphics.Color;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import eu.chainfire.librootjava.Logger;
+
+public class PropertyTimeline extends LogSource {
+    // Emits a timestamped line for every change of the init.svc.* and sys.boot* properties. The
+    // thread blocks on the global property serial in libliveboot (__system_property_wait); without
+    // it, the serial is checked every POLL_INTERVAL ms (a single read from mapped memory). Only
+    // when it changed are the watched subtrees walked and their serials compared.
+
+    private static final int COLOR = Color.rgb(0xFF, 0xA0, 0x40);
+    private static final long POLL_INTERVAL = 20;
+    private static final int WAIT_TIMEOUT = 1000;
+    private static final String[] PREFIXES = new String[] { "init.svc.", "sys.boot" };
+
+    private final PropertyReader mReader;
+    private final HashMap<PropertyArea, HashMap<Integer, Integer>> mSerials = new HashMap<PropertyArea, HashMap<Integer, Integer>>();
+    private volatile boolean mStopped = false;
+
+    public PropertyTimeline(OnLineListener onLineListener, Pipeline pipeline, PropertyReader reader) {
+        super("properties", onLineListener, pipeline, 256, true);
+        mReader = reader;
+    }
+
+    @Override
+    protected void onStart() {
+        if (!mReader.isMapped()) {
+            Logger.dp("PROPERTIES", "timeline not available");
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (NativeWait.isLoaded() && waitLoop()) return;
+                pollLoop();
+            }
+        }, "LiveBoot properties");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    protected void onStop() {
+        mStopped = true;
+    }
+
+    private boolean waitLoop() {
+        // returns false if the library can't wait after all; before Android 8 there's no timeout,
+        // the thread then stays blocked until the next property change after onStop()
+        long serial = NativeWait.propertySerial();
+        if (serial < 0) return false;
+        safeScan();
+        while (!mStopped) {
+            long next = NativeWait.propertyWait(serial, WAIT_TIMEOUT);
+            if (next < 0) return false;
+            if (next != serial) {
+                serial = next;
+                safeScan();
+            }
+        }
+        return true;
+    }
+
+    private void pollLoop() {
+        int serial = mReader.getSerial() - 1;
+        while (!mStopped) {
+            int current = mReader.getSerial();
+            if (current != serial) {
+                serial = current;
+                safeScan();
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void safeScan() {
+        try {
+            scan();
+        } catch (Exception e) {
+            Logger.ex(e);
+        }
+    }
+
+    private void scan() {
+        List<PropertyArea> areas = new ArrayList<PropertyArea>();
+        List<Integer> infos = new ArrayList<Integer>();
+        for (String prefix : PREFIXES) {
+            mReader.collect(prefix, areas, infos);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        boolean changed = false;
+        for (int i = 0; i < infos.size(); i++) {
+            PropertyArea area = areas.get(i);
+            int info = infos.get(i);
+            HashMap<Integer, Integer> serials = mSerials.get(area);
+            if (serials == null) {
+                serials = new HashMap<Integer, Integer>();
+                mSerials.put(area, serials);
+            }
+            int serial = area.getSerial(info);
+            Integer last = serials.get(info);
+            if ((last != null) && (last == serial)) continue;
+            String value = area.getValue(info);
+            if (value == null) continue;
+            serials.put(info, serial);
+
+            String line = String.format(Locale.ENGLISH, "[%5d.%03d] %s=%s", now / 1000, now % 1000, area.getName(info), value);
+            log(line);
+            offer(line, COLOR);
+            changed = true;
+        }
+        if (changed) flush();
+    }
+}
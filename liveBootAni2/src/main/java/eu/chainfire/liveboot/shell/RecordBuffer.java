@@ -0,0 +1,55 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+public class RecordBuffer {
+    // Batch of lines handed from a LogSource to the Pipeline's read thread. Allocated once and
+    // refilled for every batch.
+
+    public final String[] text;
+    public final int[] color;
+    public final long[] received;
+    public int count = 0;
+
+    public RecordBuffer(int capacity) {
+        text = new String[capacity];
+        color = new int[capacity];
+        received = new long[capacity];
+    }
+
+    public int capacity() {
+        return text.length;
+    }
+
+    public boolean isFull() {
+        return count >= text.length;
+    }
+
+    public void add(String text, int color, long received) {
+        this.text[count] = text;
+        this.color[count] = color;
+        this.received[count] = received;
+        count++;
+    }
+
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            text[i] = null;
+        }
+        count = 0;
+    }
+}
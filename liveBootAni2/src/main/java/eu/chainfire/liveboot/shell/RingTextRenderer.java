@@ -0,0 +1,225 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import eu.chainfire.librootjava.Logger;
+
+public class RingTextRenderer extends AtlasTextRenderer {
+    // Keeps the text area in an offscreen framebuffer of rows x line height, used as a ring just
+    // like the TextGrid slots: a new line is rasterized into its own row once, and the frame is
+    // composed from (at most) two textured quads, split at the head row. What a frame costs
+    // thus doesn't depend on the number of lines on screen, only on how many lines came in.
+
+    private static final String VERTEX_SHADER =
+            "attribute vec2 aPosition;\n" +
+            "attribute vec2 aTexCoord;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = vec4(aPosition, 0.0, 1.0);\n" +
+            "    vTexCoord = aTexCoord;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "uniform sampler2D uTexture;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(uTexture, vTexCoord);\n" +
+            "}\n";
+
+    private static final int QUAD_VERTICES = 6;
+    private static final int VERTEX_FLOATS = 4; // x, y, u, v
+
+    private final FloatBuffer mQuads;
+    private final int[] mViewport = new int[4];
+    private int[] mRanges;
+    private int mProgram;
+    private int mPosition;
+    private int mTexCoord;
+    private int mTextureUniform;
+    private int mFramebuffer;
+    private int mTexture;
+    private int mFramebufferWidth;
+    private int mFramebufferHeight;
+    private boolean mComplete;
+
+    public RingTextRenderer(ScreenBuilder screen, GlyphBake prebaked, int width, int height, int lineHeight) {
+        super(screen, prebaked, width, height, lineHeight);
+        mQuads = ByteBuffer.allocateDirect(2 * QUAD_VERTICES * VERTEX_FLOATS * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mProgram = ShaderProgram.create(VERTEX_SHADER, FRAGMENT_SHADER);
+        mPosition = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTexCoord = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+        mTextureUniform = GLES20.glGetUniformLocation(mProgram, "uTexture");
+        createFramebuffer();
+    }
+
+    @Override
+    protected boolean isValid() {
+        return super.isValid() && (mProgram != 0) && mComplete;
+    }
+
+    private void createFramebuffer() {
+        deleteFramebuffer();
+        TextGrid grid = getGrid();
+        mFramebufferWidth = getWidth();
+        mFramebufferHeight = grid.getRows() * getAtlas().getCellHeight();
+        mRanges = new int[grid.getRows() * 2];
+
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        mTexture = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mFramebufferWidth, mFramebufferHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glGenFramebuffers(1, ids, 0);
+        mFramebuffer = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        mComplete = (status == GLES20.GL_FRAMEBUFFER_COMPLETE);
+        if (mComplete) {
+            GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        } else {
+            Logger.dp("GL", "framebuffer %dx%d incomplete: 0x%x", mFramebufferWidth, mFramebufferHeight, status);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    private void deleteFramebuffer() {
+        if (mFramebuffer != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[] { mFramebuffer }, 0);
+            mFramebuffer = 0;
+        }
+        if (mTexture != 0) {
+            GLES20.glDeleteTextures(1, new int[] { mTexture }, 0);
+            mTexture = 0;
+        }
+        mComplete = false;
+    }
+
+    @Override
+    public void resize(int width, int height, int lineHeight) {
+        super.resize(width, height, lineHeight);
+        createFramebuffer();
+    }
+
+    @Override
+    public void draw() {
+        ScreenModel model = getScreen().get();
+        TextGrid grid = getGrid();
+        if (!isValid() || !grid.matches(model)) return;
+        int lineHeight = getAtlas().getCellHeight();
+
+        int ranges = upload(model, mRanges);
+        if (ranges > 0) {
+            // clear the changed rows and draw their glyphs; cells don't overlap, so no blending
+            int rowSize = grid.getColumns() * TextGrid.GLYPH_SIZE;
+            GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+            GLES20.glViewport(0, 0, mFramebufferWidth, mFramebufferHeight);
+            GLES20.glDisable(GLES20.GL_BLEND);
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+            GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+            for (int i = 0; i < ranges; i++) {
+                int slot = mRanges[i * 2] / rowSize;
+                GLES20.glScissor(0, mFramebufferHeight - (slot + 1) * lineHeight, mFramebufferWidth, lineHeight);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            }
+            GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+            beginGlyphs(0, mFramebufferWidth, mFramebufferHeight);
+            for (int i = 0; i < ranges; i++) {
+                drawGlyphs(mRanges[i * 2] / TextGrid.VERTEX_SIZE, mRanges[i * 2 + 1] / TextGrid.VERTEX_SIZE);
+            }
+            endGlyphs();
+            GLES20.glEnable(GLES20.GL_BLEND);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+        }
+
+        // oldest row (head) at the top
+        int rows = model.getRows();
+        int head = model.getHead();
+        mQuads.clear();
+        int quads = 0;
+        if (addQuad(0, head, rows - head, lineHeight)) quads++;
+        if (addQuad(rows - head, 0, head, lineHeight)) quads++;
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glUniform1i(mTextureUniform, 0);
+        GLES20.glEnableVertexAttribArray(mPosition);
+        GLES20.glEnableVertexAttribArray(mTexCoord);
+        mQuads.position(0);
+        GLES20.glVertexAttribPointer(mPosition, 2, GLES20.GL_FLOAT, false, VERTEX_FLOATS * 4, mQuads);
+        mQuads.position(2);
+        GLES20.glVertexAttribPointer(mTexCoord, 2, GLES20.GL_FLOAT, false, VERTEX_FLOATS * 4, mQuads);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, quads * QUAD_VERTICES);
+        GLES20.glDisableVertexAttribArray(mPosition);
+        GLES20.glDisableVertexAttribArray(mTexCoord);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        mQuads.position(0);
+    }
+
+    private boolean addQuad(int row, int slot, int count, int lineHeight) {
+        // count framebuffer rows starting at slot, to the screen starting at row
+        if (count <= 0) return false;
+        float height = getHeight();
+        float top = 1.0f - 2.0f * (row * lineHeight) / height;
+        float bottom = 1.0f - 2.0f * ((row + count) * lineHeight) / height;
+        float vTop = 1.0f - (float)(slot * lineHeight) / mFramebufferHeight;
+        float vBottom = 1.0f - (float)((slot + count) * lineHeight) / mFramebufferHeight;
+        putVertex(-1.0f, top, 0.0f, vTop);
+        putVertex(-1.0f, bottom, 0.0f, vBottom);
+        putVertex(1.0f, top, 1.0f, vTop);
+        putVertex(1.0f, top, 1.0f, vTop);
+        putVertex(-1.0f, bottom, 0.0f, vBottom);
+        putVertex(1.0f, bottom, 1.0f, vBottom);
+        return true;
+    }
+
+    private void putVertex(float x, float y, float u, float v) {
+        mQuads.put(x);
+        mQuads.put(y);
+        mQuads.put(u);
+        mQuads.put(v);
+    }
+
+    @Override
+    public void destroy() {
+        deleteFramebuffer();
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+        super.destroy();
+    }
+}
@@ -18,27 +18,25 @@ package eu.chainfire.liveboot.shell;
 
 import android.graphics.Color;
 import android.opengl.GLES20;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.SystemClock;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.locks.ReentrantLock;
 
 import eu.chainfire.librootjava.Logger;
 import eu.chainfire.libcfsurface.SurfaceHost;
-import eu.chainfire.libcfsurface.gl.GLHelper;
 import eu.chainfire.libcfsurface.gl.GLPicture;
-import eu.chainfire.libcfsurface.gl.GLTextManager;
 import eu.chainfire.libcfsurface.gl.GLTextureManager;
 import eu.chainfire.librootjavadaemon.RootDaemon;
 import eu.chainfire.libsuperuser.Debug;
-import eu.chainfire.libsuperuser.Shell;
-import eu.chainfire.libsuperuser.Toolbox;
 import eu.chainfire.liveboot.BuildConfig;
+import eu.chainfire.liveboot.R;
 
 public class 
     Runner 
@@ -46,9 +44,11 @@ extends
     SurfaceHost 
 implements 
     OnLineListener,
+    Pipeline.Consumer,
     SurfaceHost.IGLRenderCallback
 {
     public static void main(String[] args) {
+        PhaseTimer.mark("main");
         Logger.setLogTag("LiveBootSurface");
         Logger.setDebugLogging(BuildConfig.DEBUG);
         Debug.setDebug(BuildConfig.DEBUG);
@@ -77,6 +77,7 @@ implements
     
     private static final int TEST_TIME = 5000;
     private static final int LEAD_TIME = 200;
+    private static final int FRAME_RATE = 30;
     private static final int FOLLOW_TIME_SCRIPT = 60000;        
 
     private boolean mTest = false;
@@ -84,10 +85,27 @@ implements
     private int mHeight = 0;
     private int mLines = 80;
     private boolean mWordWrap = false;
+    private int mSticky = 0;
+    private int mLastKmsgLines = 0;
     private boolean mTransparent = false;
     private boolean mDark = false;
     private boolean mLogcatColor = true;
+    private boolean mStaged = false;
+    private boolean mPressure = false;
+    private boolean mCrashes = false;
+    private boolean mPropertyTimeline = false;
+    private String mLogcatLevelOpts = null;
+    private String mLogcatBufferOpts = null;
+    private String mLogcatFormatOpt = null;
+    private String mGlyphsFile = null;
+    private GlyphBake mPrebaked = null;
     private static final String LOG_NAME = "/cache/liveboot.log";
+    private static final String TRACE_NAME = "/cache/liveboot.trace";
+    private static final String PHASES_NAME = "/cache/liveboot.phases";
+    private static final String CAPTURE_NAME = "/cache/liveboot.frames";
+    private int mCaptureFps = 0;
+    private FrameCapture mFrameCapture = null;
+    private boolean mFtrace = false;
     private boolean mLogSave = false;
     private OutputStream mLogStream = null;
     private ReentrantLock mLogLock = new ReentrantLock(true);
@@ -97,72 +115,66 @@ implements
     //TODO where to put the script for Magisk?
     private String mRunScript = null;
     
+    public static final int[] RENDERER_DESCRIPTIONS = new int[] {
+        R.string.renderer_textures,
+        R.string.renderer_atlas,
+        R.string.renderer_ring,
+        R.string.renderer_software
+    };
+
+    public static final String[] RENDERER_NAMES = new String[] {
+        "textures",
+        "atlas",
+        "ring",
+        "software"
+    };
+
+    private String mRenderer = RENDERER_NAMES[0];
     private GLTextureManager mTextureManager = null;
-    private GLHelper mHelper = null;
-    private volatile GLTextManager mTextManager = null;
+    private ScreenBuilder mScreen = null;
+    private ScreenBuilder mStickyScreen = null;
+    private TextRenderer mTextRenderer = null;
+    private TextRenderer mStickyRenderer = null;
+    private int mStickyHeight = 0;
         
-    private Logcat mLogcat = null;
+    private volatile Logcat mLogcat = null;
     private Dmesg mDmesg = null;  
+    private LastKmsg mLastKmsg = null;
+    private PressureMonitor mPressureMonitor = null;
+    private CrashWatcher mCrashWatcher = null;
+    private FtraceCapture mFtraceCapture = null;
+    private PropertyTimeline mPropertyTimelineSource = null;
+    private PropertyReader mProperties = null;
+    private BootDetector mDetector = null;
+    private ProcessScanner mScanner = null;
+    private final Object mSourceLock = new Object();
+    private boolean mSourcesReady = false;
     private Script mScript = null;
     
-    private HandlerThread mHandlerThread = null;
-    private Handler mHandler = null;
+    private Pipeline mPipeline = null;
     
     private long mFirstLine = 0;
+    private boolean mFirstLineShown = false;
+    private boolean mFirstFrame = false;
     private int mLinesPassed = 0;
     
     private volatile long mComplete = 0;
+    private final FrameGovernor mGovernor = new FrameGovernor(FRAME_RATE);
     
-    private boolean isBootAnimationRunning() {
-        List<String> ps = Shell.SH.run(new String[] {
-                "/system/bin/" + Toolbox.command("ps") + " | /system/bin/" + Toolbox.command("grep") + " bootanim"+  " | /system/bin/" + Toolbox.command("grep") + " -v grep",
-                "/system/bin/" + Toolbox.command("ps") + " -A | /system/bin/" + Toolbox.command("grep") + " bootanim" + " | /system/bin/" + Toolbox.command("grep") + " -v grep"
-        });
-        if (ps != null) {
-            for (String line : ps) {
-                if (line.contains("bootanim")) {
-                    return true;
-                }
-            }
-        }
-        return SystemProperties.get("init.svc.bootanim", "stopped").equals("running");
-    }
-
     private void killBootAnimation() {
-        List<String> ps = Shell.SH.run(new String[] {
-                "/system/bin/" + Toolbox.command("ps") + " | /system/bin/" + Toolbox.command("grep") + " bootanim"+  " | /system/bin/" + Toolbox.command("grep") + " -v grep",
-                "/system/bin/" + Toolbox.command("ps") + " -A | /system/bin/" + Toolbox.command("grep") + " bootanim" + " | /system/bin/" + Toolbox.command("grep") + " -v grep"
-        });
-        if (ps != null) {
-            for (String line : ps) {
-                String[] parts = line.split(" +");
-                if (parts.length >= 2) {
-                    Shell.run("sh", new String[] { "/system/bin/" + Toolbox.command("kill") + " -9 " + parts[1] }, null, false);
-                }
-            }
-        }        
+        for (int pid : mScanner.findByName("bootanim")) {
+            mScanner.kill(pid);
+        }
     }
     
     private void infanticide() { // children
-        String pid = String.valueOf(android.os.Process.myPid());
-        List<String> ps = Shell.SH.run(new String[] {
-                "/system/bin/" + Toolbox.command("ps") + " | /system/bin/" + Toolbox.command("grep") + " " + pid + " | /system/bin/" + Toolbox.command("grep") + " -v grep",
-                "/system/bin/" + Toolbox.command("ps") + " -A | /system/bin/" + Toolbox.command("grep") + " " + pid + " | /system/bin/" + Toolbox.command("grep") + " -v grep"
-        });
-        if (ps != null) {
-            for (String line : ps) {
-                String[] parts = line.split(" +");
-                if (parts.length >= 3) {
-                    if (!parts[1].equals(pid) && parts[2].equals(pid)) { 
-                        Shell.run("sh", new String[] { "/system/bin/" + Toolbox.command("kill") + " -9 " + parts[1] }, null, false);
-                    }
-                }
-            }
-        }                
+        for (int pid : mScanner.findChildren(android.os.Process.myPid())) {
+            mScanner.kill(pid);
+        }
     }
     
     private void suicide() { // self
-        Shell.SH.run(new String[] { "/system/bin/" + Toolbox.command("kill") + " -9 " + String.valueOf(android.os.Process.myPid()) });
+        android.os.Process.killProcess(android.os.Process.myPid());
     }
     
     @Override
@@ -175,23 +187,40 @@ implements
     protected void onResize(int width, int height) {
         mWidth = width;
         mHeight = height;
-        mTextManager.resize(-1, -1, width, height, -1, mHeight / mLines);
-        mHelper.resize(width, height);
+        mStickyHeight = mSticky * (mHeight / mLines);
+        mTextRenderer.resize(width, height - mStickyHeight, mHeight / mLines);
+        if (mStickyRenderer != null) {
+            mStickyRenderer.resize(width, mStickyHeight, mHeight / mLines);
+        }
+        if (mFrameCapture != null) mFrameCapture.resize(width, height, mStickyHeight, mHeight / mLines);
+        mGovernor.invalidate();
     }
 
     @Override
     protected void onInit(String[] args) {
         RootDaemon.daemonize(BuildConfig.APPLICATION_ID, 0, false, null);
+        PhaseTimer.mark("daemonize");
 
-        Toolbox.init();
+        mProperties = PropertyReader.getInstance();
+        mScanner = new ProcessScanner();
+        PhaseTimer.mark("readers");
+
+        // parse options, from the arguments and the profile these point to
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        for (String arg : args) {
+            if (arg.startsWith("profile=")) {
+                List<String> profile = BootProfile.read(new File(arg.substring("profile=".length())));
+                if (profile != null) {
+                    options.addAll(profile);
+                } else {
+                    Logger.dp("OPTS", "profile unavailable: %s", arg);
+                }
+            }
+        }
 
-        // parse options
-        String logcatLevelOpts = null;
-        String logcatBufferOpts = null;
-        String logcatFormatOpt = null;
         String dmesgOpts = null;
                 
-        for (String arg : args) {
+        for (String arg : options) {
             try {
                 if (arg.equals("test")) {
                     mTest = true;
@@ -211,6 +240,21 @@ implements
                 } else if (arg.equals("logcatnocolors")) {
                     mLogcatColor = false;
                     Logger.dp("OPTS", "logcatnocolors==1");
+                } else if (arg.equals("ftrace")) {
+                    mFtrace = true;
+                    Logger.dp("OPTS", "ftrace==1");
+                } else if (arg.equals("properties")) {
+                    mPropertyTimeline = true;
+                    Logger.dp("OPTS", "properties==1");
+                } else if (arg.equals("crashes")) {
+                    mCrashes = true;
+                    Logger.dp("OPTS", "crashes==1");
+                } else if (arg.equals("pressure")) {
+                    mPressure = true;
+                    Logger.dp("OPTS", "pressure==1");
+                } else if (arg.equals("staged")) {
+                    mStaged = true;
+                    Logger.dp("OPTS", "staged==1");
                 } else if (arg.contains("=")) {
                     String key = arg.substring(0, arg.indexOf('='));
                     String value = arg.substring(arg.indexOf('=') + 1);
@@ -224,18 +268,37 @@ implements
                     } else if (key.equals("lines")) {
                         mLines = Integer.valueOf(value, 10);
                         Logger.dp("OPTS", "mLines==%s", mLines);
+                    } else if (key.equals("sticky")) {
+                        mSticky = Integer.valueOf(value, 10);
+                        Logger.dp("OPTS", "mSticky==%s", mSticky);
+                    } else if (key.equals("renderer")) {
+                        mRenderer = value;
+                        Logger.dp("OPTS", "mRenderer==%s", mRenderer);
+                    } else if (key.equals("lastkmsg")) {
+                        mLastKmsgLines = Integer.valueOf(value, 10);
+                        Logger.dp("OPTS", "mLastKmsgLines==%s", mLastKmsgLines);
                     } else if (key.equals("logcatlevels")) {
-                        logcatLevelOpts = value;
-                        Logger.dp("OPTS", "logcatLevelOpts==%s", logcatLevelOpts);
+                        mLogcatLevelOpts = value;
+                        Logger.dp("OPTS", "logcatLevelOpts==%s", mLogcatLevelOpts);
                     } else if (key.equals("logcatbuffers")) {
-                        logcatBufferOpts = value;
-                        Logger.dp("OPTS", "logcatBufferOpts==%s", logcatBufferOpts);
+                        mLogcatBufferOpts = value;
+                        Logger.dp("OPTS", "logcatBufferOpts==%s", mLogcatBufferOpts);
                     } else if (key.equals("logcatformat")) {
-                        logcatFormatOpt = value;
-                        Logger.dp("OPTS", "logcatFormatOpt==%s", logcatFormatOpt);                    
+                        mLogcatFormatOpt = value;
+                        Logger.dp("OPTS", "logcatFormatOpt==%s", mLogcatFormatOpt);                    
                     } else if (key.equals("dmesg")) {
                         dmesgOpts = value;
                         Logger.dp("OPTS", "dmesgOpts==%s", dmesgOpts);
+                    } else if (key.equals("capture")) {
+                        mCaptureFps = Integer.valueOf(value, 10);
+                        Logger.dp("OPTS", "mCaptureFps==%d", mCaptureFps);
+                    } else if (key.equals("glyphs")) {
+                        mGlyphsFile = value;
+                        Logger.dp("OPTS", "mGlyphsFile==%s", mGlyphsFile);
+                    } else if (key.equals("native")) {
+                        Logger.dp("OPTS", "native==%s (%s)", value, NativeWait.load(value) ? "loaded" : "failed");
+                    } else if (key.equals("profile")) {
+                        Logger.dp("OPTS", "profile==%s", value);
                     }
                 }
             } catch (Exception e) {
@@ -251,9 +314,15 @@ implements
             mRunScript = SCRIPT_NAME_SYSTEM;
         } //TODO Magisk, KernelSU
 
-        mHandlerThread = new HandlerThread("LiveBoot HandlerThread");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+        PhaseTimer.mark("options");
+
+        // unwrapped until the renderer sizes them
+        mScreen = new ScreenBuilder(mLines, Integer.MAX_VALUE);
+        if (mSticky > 0) mStickyScreen = new ScreenBuilder(mSticky, Integer.MAX_VALUE);
+
+        mPipeline = new Pipeline(this, mLines * 8);
+        mPipeline.start();
+        PhaseTimer.mark("pipeline");
         
         if (mLogSave) {
             try {
@@ -262,45 +331,153 @@ implements
             }
         }
         
-        // start logcat and dmesg
+        // start logcat and dmesg, when staged logcat waits for zygote (checkStage)
+        if (mFtrace) {
+            // as early as possible, and independent of what is shown
+            mFtraceCapture = new FtraceCapture(this, mPipeline, TRACE_NAME);
+            mFtraceCapture.start();
+        }
         if (mRunScript == null) {
-            mLogcat = new Logcat(this, mLines * 4, logcatLevelOpts, logcatBufferOpts, logcatFormatOpt, mHandler);
-            mDmesg = new Dmesg(this, mLines * 4, dmesgOpts, mHandler);
+            // the shells behind logcat and dmesg start in the background and spool until
+            // onInitRender marks them ready, so the surface comes up while they spawn
+            if (mLastKmsgLines > 0) {
+                // registered first, it holds back the others until it has been shown
+                mLastKmsg = new LastKmsg(this, mLastKmsgLines, mPipeline);
+                mLastKmsg.start();
+            }
+            if (!mStaged) {
+                mLogcat = new Logcat(this, mLines * 4, mLogcatLevelOpts, mLogcatBufferOpts, mLogcatFormatOpt, mPipeline);
+                mLogcat.startAsync();
+            }
+            mDmesg = new Dmesg(this, mLines * 4, dmesgOpts, mPipeline);
+            mDmesg.startAsync();
+            if (mPressure) {
+                mPressureMonitor = new PressureMonitor(this, mPipeline);
+                mPressureMonitor.start();
+            }
+            if (mCrashes) {
+                mCrashWatcher = new CrashWatcher(this, mPipeline);
+                mCrashWatcher.start();
+            }
+            if (mPropertyTimeline) {
+                mPropertyTimelineSource = new PropertyTimeline(this, mPipeline, mProperties);
+                mPropertyTimelineSource.start();
+            }
+        }
+        PhaseTimer.mark("sources");
+    }
+
+    private void checkStage() {
+        // until zygote runs there's only the kernel to look at; after that, logcat with only kernel warnings
+        if (!mStaged || (mRunScript != null) || (mLogcat != null)) return;
+        if (!mProperties.get("init.svc.zygote", "stopped").equals("running")) return;
+
+        Logger.dp("STAGE", "zygote running");
+        if (mDmesg != null) mDmesg.setSeverity(Dmesg.LEVEL_WARNING);
+        synchronized (mSourceLock) {
+            mLogcat = new Logcat(this, mLines * 4, mLogcatLevelOpts, mLogcatBufferOpts, mLogcatFormatOpt, mPipeline);
+            mLogcat.startAsync();
+            if (mSourcesReady) mLogcat.setReady();
         }
     }
 
     @Override
     protected void onDone() {
-        mHandlerThread.quit();
+        if (mLastKmsg != null) mLastKmsg.destroy();
         if (mLogcat != null) mLogcat.destroy();
         if (mDmesg != null) mDmesg.destroy();
+        if (mPressureMonitor != null) mPressureMonitor.destroy();
+        if (mCrashWatcher != null) mCrashWatcher.destroy();
+        if (mPropertyTimelineSource != null) mPropertyTimelineSource.destroy();
+        if (mFtraceCapture != null) mFtraceCapture.destroy();
+        if (mFrameCapture != null) mFrameCapture.stop();
         if (mScript != null) mScript.destroy();
+        mPipeline.stop();
+        mGovernor.release();
     }
     
+    private TextRenderer createRenderer(ScreenBuilder screen, int width, int height, int lineHeight) {
+        // if GL setup fails, falls back from ring to atlas to software to textures
+        if (mRenderer.equals("ring")) {
+            RingTextRenderer ring = new RingTextRenderer(screen, mPrebaked, width, height, lineHeight);
+            if (ring.isValid()) return ring;
+            Logger.dp("RENDER", "ring unavailable, using atlas");
+            ring.destroy();
+        }
+        if (mRenderer.equals("ring") || mRenderer.equals("atlas")) {
+            AtlasTextRenderer atlas = new AtlasTextRenderer(screen, mPrebaked, width, height, lineHeight);
+            if (atlas.isValid()) return atlas;
+            Logger.dp("RENDER", "atlas unavailable, using software");
+            atlas.destroy();
+        }
+        if (mRenderer.equals("ring") || mRenderer.equals("atlas") || mRenderer.equals("software")) {
+            SoftwareTextRenderer software = new SoftwareTextRenderer(screen, mPrebaked, width, height, lineHeight);
+            if (software.isValid()) return software;
+            Logger.dp("RENDER", "software unavailable, using textures");
+            software.destroy();
+        }
+        return new ManagerTextRenderer(screen, mWordWrap, mTextureManager, width, height, lineHeight);
+    }
+
     @Override
     protected void onInitRender() {
+        PhaseTimer.mark("surface");
         mTextureManager = new GLTextureManager();
-        mHelper = new GLHelper(mWidth, mHeight, GLHelper.getDefaultVMatrix());
-        mTextManager = new GLTextManager(mTextureManager, mHelper, mWidth, mHeight, mHeight / mLines);
+        if ((mGlyphsFile != null) && !mRenderer.equals("textures") && (new File(mGlyphsFile)).exists()) {
+            // font atlas baked by the app for this screen and line count
+            mPrebaked = GlyphBake.read(new File(mGlyphsFile), GlyphBake.checksum(mWidth, mHeight, mLines));
+            Logger.dp("RENDER", "prebaked glyphs %s", mPrebaked != null ? "loaded" : "outdated");
+            PhaseTimer.mark("glyphs");
+        }
+        mStickyHeight = mSticky * (mHeight / mLines);
+        mTextRenderer = createRenderer(mScreen, mWidth, mHeight - mStickyHeight, mHeight / mLines);
+        if ((mStickyHeight > 0) && (mStickyScreen != null)) {
+            // last errors stay visible at the top of the screen, while the rest scrolls below
+            mStickyRenderer = createRenderer(mStickyScreen, mWidth, mStickyHeight, mHeight / mLines);
+        }
+
+        if ((mCaptureFps > 0) && (mFrameCapture == null)) {
+            // from the screen models, on its own thread
+            mFrameCapture = new FrameCapture(mScreen, mStickyScreen, mWidth, mHeight, mStickyHeight, mHeight / mLines, mPrebaked, (mDark || mTransparent) ? 0xFF000000 : 0xFF333333, mCaptureFps, CAPTURE_NAME);
+            mFrameCapture.start();
+        }
 
         GLPicture.initGl();            
                 
         // ready to receive lines
+        if (mFtraceCapture != null) mFtraceCapture.setReady();
         if (mRunScript == null) {
-            if (mDmesg != null) mDmesg.setReady();
-            if (mLogcat != null) mLogcat.setReady();
+            synchronized (mSourceLock) {
+                mSourcesReady = true;
+                if (mLastKmsg != null) mLastKmsg.setReady();
+                if (mDmesg != null) mDmesg.setReady();
+                if (mPressureMonitor != null) mPressureMonitor.setReady();
+                if (mCrashWatcher != null) mCrashWatcher.setReady();
+                if (mPropertyTimelineSource != null) mPropertyTimelineSource.setReady();
+                if (mLogcat != null) mLogcat.setReady();
+            }
         } else {        
-            mScript = new Script(this, mRunScript);
+            mScript = new Script(this, mLines * 4, mRunScript, mPipeline);
+            mScript.start();
         }
     }
     
     @Override
     public void onGLRenderFrame() {
+        // only draw when something changed, see FrameGovernor
+        mGovernor.await();
+        if (!mFirstFrame) {
+            PhaseTimer.mark("first_frame");
+            mFirstFrame = true;
+        }
         GLES20.glDisable(GLES20.GL_BLEND);
-        float alpha = 1.0f;
+        // exit: the background fades out while the text scrolls out upwards, both driven by time
+        float progress = 0.0f;
         if (mComplete > 0) {
-            alpha -= ((float)(SystemClock.elapsedRealtime() - mComplete) / (float)LEAD_TIME);
+            progress = Math.min(1.0f, (float)(SystemClock.elapsedRealtime() - mComplete) / (float)LEAD_TIME);
         }
+        float alpha = 1.0f - progress;
+        int scroll = (int)(progress * mHeight);
         if (!mTransparent) {
             float color = (mDark ? 0.0f : 0.2f * alpha);
             GLES20.glClearColor(color, color, color, alpha);
@@ -311,50 +488,66 @@ implements
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);        
         GLES20.glEnable(GLES20.GL_BLEND);
         
-        mTextManager.draw();
+        if (mStickyRenderer == null) {
+            if (scroll > 0) GLES20.glViewport(0, scroll, mWidth, mHeight);
+            mTextRenderer.draw();
+            if (scroll > 0) GLES20.glViewport(0, 0, mWidth, mHeight);
+        } else {
+            GLES20.glViewport(0, scroll, mWidth, mHeight - mStickyHeight);
+            mTextRenderer.draw();
+            if (mComplete == 0) {
+                GLES20.glViewport(0, mHeight - mStickyHeight, mWidth, mStickyHeight);
+                mStickyRenderer.draw();
+            }
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+        }
     }    
 
     @Override
     protected void onDoneRender() {
-        mTextManager.destroy();
-        mTextManager = null;
+        if (mStickyRenderer != null) {
+            mStickyRenderer.destroy();
+            mStickyRenderer = null;
+        }
+        mTextRenderer.destroy();
+        mTextRenderer = null;
         mTextureManager.destroy();
         mTextureManager = null;
     }
 
     @Override
-    public void onLine(Object sender, String text, int color) {
-        final String t = text;
-        final int c = color;
-        final Object s = sender;
-        mHandler.post(new Runnable() {           
-            @Override
-            public void run() {
-                if (mTextManager != null) {
-                    long wait = 0L;
-                    if (mComplete == 0) {
-                        if (mFirstLine == 0) mFirstLine = SystemClock.elapsedRealtime();
-                        wait = mFirstLine;
-                    } else {
-                        wait = mComplete;
-                    }
-                    mLinesPassed++;
-                    while (SystemClock.elapsedRealtime() - wait < Math.min(LEAD_TIME, (int)((float)LEAD_TIME * ((float)mLinesPassed / (float)mLines)))) {
-                        try { 
-                            Thread.sleep(1); 
-                        } catch (Exception e) {                        
-                        }
-                    }                
-                    if (mComplete == 0) {
-                        int color = c;
-                        if ((s == mLogcat) && (!mLogcatColor)) color = Color.WHITE;
-                        mTextManager.add(t, color, mWordWrap);
-                    } else {
-                        mTextManager.add("", Color.WHITE, mWordWrap);
+    public void onLayout(LineRecord record) {
+        // layout thread; only the screen models are touched here, never the renderers
+        if ((mScreen != null) && (mComplete == 0)) {
+            if (record.status) {
+                // replaced in place, in the sticky area if there is one
+                ((mStickyScreen != null) ? mStickyScreen : mScreen).update(record.sender, record.text, record.color, mWordWrap);
+                mGovernor.invalidate();
+                return;
+            }
+            if (!record.priority) {
+                // errors skip the pacing, and are let through while we're pacing others
+                if (mFirstLine == 0) mFirstLine = SystemClock.elapsedRealtime();
+                long wait = mFirstLine;
+                mLinesPassed++;
+                while (SystemClock.elapsedRealtime() - wait < Math.min(LEAD_TIME, (int)((float)LEAD_TIME * ((float)mLinesPassed / (float)mLines)))) {
+                    mPipeline.drainPriority();
+                    try { 
+                        Thread.sleep(1); 
+                    } catch (Exception e) {                        
                     }
-                }
+                }                
             }
-        });
+            if (!mFirstLineShown) {
+                PhaseTimer.mark("first_line");
+                mFirstLineShown = true;
+            }
+            int color = record.color;
+            if ((record.sender == mLogcat) && (!mLogcatColor)) color = Color.WHITE;
+            mScreen.add(record.text, color, mWordWrap);
+            if (record.priority && (mStickyScreen != null)) mStickyScreen.add(record.text, color, mWordWrap);
+            mGovernor.invalidate();
+        }
     }
     
     @Override
@@ -376,12 +569,16 @@ implements
     
     @Override
     protected void onMainLoop() {
+        long completed = 0;
         if (mTest) {
+            checkStage();
             try { 
                 Thread.sleep(TEST_TIME); 
             } catch (Exception e) {                 
             }            
         } else {
+            mDetector = new BootDetector(mProperties, mScanner, new File(LIVEBOOT_ABORT_FILE));
+            mDetector.start();
             long start = SystemClock.elapsedRealtime();
             boolean bootAnimationSeen = false;
             boolean bootAnimationGone = false;
@@ -390,26 +587,27 @@ implements
             while (true) {
                 // do not check sys.boot_completed or dev.bootcomplete, as these are already set to 1 before entering decryption password
                 long now = SystemClock.elapsedRealtime();
-                if ((complete == 0) && SystemProperties.get("service.bootanim.exit", "0").equals("1")) {
+                checkStage();
+                if ((complete == 0) && mProperties.get("service.bootanim.exit", "0").equals("1")) {
                     // sign from Android that we should quit
                     Logger.d("service.bootanim.exit");
                     complete = now;
                 }
-                if ((complete == 0) && SystemProperties.get("service.bootanim.completed", "0").equals("1")) {
+                if ((complete == 0) && mProperties.get("service.bootanim.completed", "0").equals("1")) {
                     // sign from Android that we should quit
                     Logger.d("service.bootanim.completed");
                     complete = now;
                 }
                 if ((complete == 0) && !bootAnimationSeen && (now - start > 1500)) {
                     // register if we ever saw the bootanimation
-                    if (isBootAnimationRunning()) {
+                    if (mDetector.isBootAnimationRunning()) {
                         Logger.d("bootAnimationSeen");
                         bootAnimationSeen = true;
                     }
                 }
                 if (bootAnimationSeen && !bootAnimationGone && (now - start > 2500)) {
                     // if we saw the bootanimation before and its gone now, note that
-                    if (!isBootAnimationRunning()) {
+                    if (!mDetector.isBootAnimationRunning()) {
                         Logger.d("bootAnimationGone");
                         bootAnimationGone = true;
                     }
@@ -419,12 +617,12 @@ implements
                     Logger.d("bootAnimationkill");
                     killBootAnimation();
                     bootAnimationKilled = true;
-                    if (!isBootAnimationRunning()) {
+                    if (!mDetector.isBootAnimationRunning()) {
                         Logger.d("bootAnimationkill/Gone");
                         bootAnimationGone = true;
                     }
                 }
-                if ((complete == 0) && (new File(LIVEBOOT_ABORT_FILE)).exists()) {
+                if ((complete == 0) && mDetector.isAbortRequested()) {
                     Logger.d("bootCompleteAbortFromAPK");
                     complete = now;
                     bootAnimationSeen = true;
@@ -451,22 +649,87 @@ implements
                     }
                     break;
                 }
-                try { 
-                    Thread.sleep(64); 
-                } catch (Exception e) {                 
-                }
+                // sleeps until the next time-based check above is due, or for good if there is
+                // none; property changes, the abort file and the bootanimation exiting wake us up
+                long deadline = Long.MAX_VALUE;
+                if ((complete == 0) && !bootAnimationSeen && (now - start <= 1500)) deadline = start + 1501;
+                if (bootAnimationSeen && !bootAnimationGone && (now - start <= 2500)) deadline = Math.min(deadline, start + 2501);
+                if (bootAnimationSeen && (complete > 0)) deadline = Math.min(deadline, complete + 2501);
+                boolean tracking =
+                        ((complete == 0) && !bootAnimationSeen && (now - start > 1500)) ||
+                        (bootAnimationSeen && !bootAnimationGone && (now - start > 2500));
+                mDetector.await((deadline == Long.MAX_VALUE) ? -1 : Math.max(0, deadline - SystemClock.elapsedRealtime()), tracking);
             }
+            mDetector.stop();
+            completed = complete;
             Logger.d("Runtime: %dms", SystemClock.elapsedRealtime() - start);
         }
+        // from here on lines are dropped, and the renderer fades out (see onGLRenderFrame). The
+        // spools are finished and the stats written while it does, the display is handed back
+        // once both are done.
         mComplete = SystemClock.elapsedRealtime();
-        mLinesPassed = 0;
-        for (int i = 0; i < (mLines * 5) / 4; i++) {
-            onLine(null, "", Color.WHITE);
+        if (completed == 0) completed = mComplete;
+        mGovernor.setAnimating(true);
+        PhaseTimer.mark("complete");
+
+        if (mFtraceCapture != null) {
+            // finish the spool now, we're about to kill ourselves
+            mFtraceCapture.destroy();
+        }
+        if (mFrameCapture != null) {
+            // lines are dropped since completion, the last frame is the final screen
+            mFrameCapture.stop();
+            Logger.dp("RENDER", "%s", mFrameCapture.getStats());
+            onLog(mPipeline, mFrameCapture.getStats());
+        }
+        Logger.dp("PIPELINE", "%s", mPipeline.getStats());
+        onLog(mPipeline, mPipeline.getStats());
+        Logger.dp("RENDER", "%s", mGovernor.getStats());
+        onLog(mPipeline, mGovernor.getStats());
+        TextRenderer renderer = mTextRenderer;
+        String glyphStats = (renderer != null) ? renderer.getStats() : null;
+        if (glyphStats != null) {
+            Logger.dp("RENDER", "%s", glyphStats);
+            onLog(mPipeline, glyphStats);
+        }
+        for (String phase : PhaseTimer.dump()) {
+            Logger.dp("PHASE", "%s", phase);
+            onLog(mPipeline, phase);
+        }
+        double firstLine = PhaseTimer.between("surface", "first_line");
+        if (firstLine >= 0) {
+            // sources start in the background while the surface comes up, this is what the
+            // user waits for on top of the surface
+            String phase = String.format(Locale.ENGLISH, "phase: first line %.1fms after surface", firstLine);
+            Logger.dp("PHASE", "%s", phase);
+            onLog(mPipeline, phase);
         }
-        try { 
-            Thread.sleep(LEAD_TIME); 
-        } catch (Exception e) {                            
-        }        
+        if (mLogSave) {
+            PhaseTimer.write(PHASES_NAME, BuildConfig.VERSION_CODE);
+        }
+        LogSource[] sources = new LogSource[] { mLastKmsg, mLogcat, mDmesg, mPressureMonitor, mCrashWatcher, mPropertyTimelineSource, mFtraceCapture, mScript };
+        for (LogSource source : sources) {
+            if (source != null) {
+                Logger.dp("SOURCE", "%s", source.getStats());
+                onLog(mPipeline, source.getStats());
+            }
+        }
+        long fading = LEAD_TIME - (SystemClock.elapsedRealtime() - mComplete);
+        if (fading > 0) {
+            try {
+                Thread.sleep(fading);
+            } catch (Exception e) {
+            }
+        }
+        // one more frame for the end of the fade, then idle; still capped, unlike release()
+        mGovernor.setAnimating(false);
+        mGovernor.invalidate();
+        killBootAnimation();
+        infanticide();
+
+        String handoff = String.format(Locale.ENGLISH, "exit: display handed back %dms after completion", SystemClock.elapsedRealtime() - completed);
+        Logger.dp("EXIT", "%s", handoff);
+        onLog(mPipeline, handoff);
         if (mLogSave) {
             mLogLock.lock();
             try {
@@ -479,8 +742,6 @@ implements
                 mLogLock.unlock();
             }
         }
-        killBootAnimation();
-        infanticide();
         suicide();
     }
 }
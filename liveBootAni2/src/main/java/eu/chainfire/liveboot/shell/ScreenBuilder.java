@@ -0,0 +1,202 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ScreenBuilder {
+    // Ingest side of a text area. Lines are laid out to the width of the area by LineLayout and
+    // their rows are written into the slot of the oldest row, which then becomes the newest; until
+    // the area is full, rows fill it from the top. Rows are spans into the line's text, wrapping
+    // doesn't copy. After every change the next ScreenModel is published with a single atomic
+    // swap, renderers pick up the latest one without ever taking a lock.
+    //
+    // Every line keeps the breaks of its last layout, a resize only lays out the lines that are
+    // still (partly) visible again, and only if the width changed.
+    //
+    // Status lines (update()) overwrite the slots of their previous version instead of scrolling,
+    // for as long as that is entirely visible and the new text takes as many rows.
+    //
+    // add() and update() come from the layout thread, resize() from the renderer when the area
+    // changes size.
+
+    private static class Line {
+        public final String text;
+        public final int color;
+        public final boolean wordWrap;
+        public int columns = 0;
+        public int rows = 0;
+        public int[] breaks = null;
+
+        public Line(String text, int color, boolean wordWrap) {
+            this.text = text;
+            this.color = color;
+            this.wordWrap = wordWrap;
+        }
+
+        public int getStart(int row) {
+            return row == 0 ? 0 : breaks[row - 1];
+        }
+
+        public int getEnd(int row) {
+            return breaks[row];
+        }
+    }
+
+    private final AtomicReference<ScreenModel> mModel = new AtomicReference<ScreenModel>();
+    private final int[] mBreaks = new int[LineLayout.MAX_ROWS];
+    private final HashMap<Object, Line> mStatus = new HashMap<Object, Line>();
+
+    private int mRows;
+    private int mColumns;
+    private Line[] mLine;
+    private int[] mLineRow;
+    private long[] mSlotSerial;
+    private int mHead = 0;
+    private int mCount = 0;
+    private long mSerial = 0;
+
+    public ScreenBuilder(int rows, int columns) {
+        allocate(Math.max(1, rows), Math.max(1, columns));
+        publish();
+    }
+
+    private void allocate(int rows, int columns) {
+        mRows = rows;
+        mColumns = columns;
+        mLine = new Line[rows];
+        mLineRow = new int[rows];
+        mSlotSerial = new long[rows];
+        mHead = 0;
+        mCount = 0;
+    }
+
+    public ScreenModel get() {
+        return mModel.get();
+    }
+
+    private void publish() {
+        mSerial++;
+        String[] text = new String[mRows];
+        int[] start = new int[mRows];
+        int[] end = new int[mRows];
+        int[] color = new int[mRows];
+        for (int slot = 0; slot < mRows; slot++) {
+            Line line = mLine[slot];
+            if (line == null) continue;
+            text[slot] = line.text;
+            start[slot] = line.getStart(mLineRow[slot]);
+            end[slot] = line.getEnd(mLineRow[slot]);
+            color[slot] = line.color;
+        }
+        mModel.set(new ScreenModel(mRows, mColumns, mHead, mCount, mSerial, text, start, end, color, mSlotSerial.clone()));
+    }
+
+    private void layout(Line line) {
+        if (line.columns == mColumns) return;
+        line.rows = LineLayout.layout(line.text, mColumns, line.wordWrap, mBreaks);
+        if ((line.breaks == null) || (line.breaks.length < line.rows)) line.breaks = new int[line.rows];
+        System.arraycopy(mBreaks, 0, line.breaks, 0, line.rows);
+        line.columns = mColumns;
+    }
+
+    public synchronized void add(String text, int color, boolean wordWrap) {
+        if (text.indexOf('\t') > -1) text = text.replace('\t', ' ');
+        Line line = new Line(text, color, wordWrap);
+        layout(line);
+        append(line);
+        publish();
+    }
+
+    public synchronized void update(Object tag, String text, int color, boolean wordWrap) {
+        if (text.indexOf('\t') > -1) text = text.replace('\t', ' ');
+        Line line = new Line(text, color, wordWrap);
+        layout(line);
+        Line last = mStatus.put(tag, line);
+        if ((last != null) && (last.columns == mColumns) && (last.rows == line.rows)) {
+            int visible = 0;
+            for (int slot = 0; slot < mCount; slot++) {
+                if (mLine[slot] == last) visible++;
+            }
+            if (visible == line.rows) {
+                for (int slot = 0; slot < mCount; slot++) {
+                    if (mLine[slot] != last) continue;
+                    mLine[slot] = line;
+                    mSlotSerial[slot] = mSerial + 1;
+                }
+                publish();
+                return;
+            }
+        }
+        append(line);
+        publish();
+    }
+
+    private void append(Line line) {
+        for (int row = Math.max(0, line.rows - mRows); row < line.rows; row++) {
+            addRow(line, row);
+        }
+    }
+
+    private void addRow(Line line, int row) {
+        int slot;
+        if (mCount < mRows) {
+            slot = mCount++;
+        } else {
+            slot = mHead;
+            mHead = (mHead + 1) % mRows;
+        }
+        mLine[slot] = line;
+        mLineRow[slot] = row;
+        mSlotSerial[slot] = mSerial + 1;
+    }
+
+    public synchronized void resize(int rows, int columns) {
+        // keeps the newest lines, laid out for the new width
+        rows = Math.max(1, rows);
+        columns = Math.max(1, columns);
+        if ((rows == mRows) && (columns == mColumns)) return;
+
+        // visible lines, newest first
+        Line[] lines = new Line[mCount];
+        int count = 0;
+        for (int i = mCount - 1; i >= 0; i--) {
+            Line line = mLine[(mHead + i) % mRows];
+            if ((count == 0) || (lines[count - 1] != line)) lines[count++] = line;
+        }
+
+        allocate(rows, columns);
+
+        // lay out until the area is filled, oldest of those first
+        int needed = 0;
+        int first = 0;
+        while ((first < count) && (needed < rows)) {
+            layout(lines[first]);
+            needed += lines[first].rows;
+            first++;
+        }
+        for (int i = first - 1; i >= 0; i--) {
+            Line line = lines[i];
+            int skip = (i == first - 1) ? Math.max(0, needed - rows) : 0;
+            for (int row = skip; row < line.rows; row++) {
+                addRow(line, row);
+            }
+        }
+        publish();
+    }
+}
@@ -0,0 +1,108 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+public class ScreenModel {
+    // Immutable snapshot of a text area, published by ScreenBuilder. Rows are stored as a ring of
+    // slots; the on-screen row of a slot is (slot - head + rows) % rows. Every slot carries the
+    // serial of the model version it was last written in, so a renderer can tell which slots
+    // changed since the version it drew last. A row is the [start, end) span of its line's text.
+
+    private final int mRows;
+    private final int mColumns;
+    private final int mHead;
+    private final int mCount;
+    private final long mSerial;
+    private final String[] mText;
+    private final int[] mStart;
+    private final int[] mEnd;
+    private final int[] mColor;
+    private final long[] mSlotSerial;
+
+    ScreenModel(int rows, int columns, int head, int count, long serial, String[] text, int[] start, int[] end, int[] color, long[] slotSerial) {
+        mRows = rows;
+        mColumns = columns;
+        mHead = head;
+        mCount = count;
+        mSerial = serial;
+        mText = text;
+        mStart = start;
+        mEnd = end;
+        mColor = color;
+        mSlotSerial = slotSerial;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getHead() {
+        return mHead;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getSerial() {
+        return mSerial;
+    }
+
+    public String getText(int slot) {
+        // the whole line, null if empty
+        return mText[slot];
+    }
+
+    public int getStart(int slot) {
+        return mStart[slot];
+    }
+
+    public int getEnd(int slot) {
+        return mEnd[slot];
+    }
+
+    public String getRowText(int slot) {
+        String text = mText[slot];
+        if ((text == null) || ((mStart[slot] == 0) && (mEnd[slot] == text.length()))) return text;
+        return text.substring(mStart[slot], mEnd[slot]);
+    }
+
+    public int getColor(int slot) {
+        return mColor[slot];
+    }
+
+    public long getSerial(int slot) {
+        return mSlotSerial[slot];
+    }
+
+    public int getSlot(int row) {
+        return (mHead + row) % mRows;
+    }
+
+    public String getLine(int row) {
+        // by on-screen row, null if empty
+        return getRowText(getSlot(row));
+    }
+
+    public int getLineColor(int row) {
+        return mColor[getSlot(row)];
+    }
+}
@@ -23,52 +23,46 @@ import java.io.File;
 import eu.chainfire.libsuperuser.Shell;
 import eu.chainfire.libsuperuser.StreamGobbler;
 
-public class Script {
+public class Script extends LogSource {
     private static final int COLOR_STDOUT = Color.WHITE;
     private static final int COLOR_STDERR = Color.RED;
 
-    private final Shell.Interactive mShell;
-    private final OnLineListener mOnLineListener;
+    private final String mScript;
+    private Shell.Interactive mShell = null;
     
-    public Script(OnLineListener onLineListener, String script) {
-        mOnLineListener = onLineListener;
+    public Script(OnLineListener onLineListener, int cacheSize, String script, Pipeline pipeline) {
+        super("script", onLineListener, pipeline, cacheSize, false);
+        mScript = script;
+    }
 
-        if (!(new File(script)).exists()) {
-            mShell = null;
+    @Override
+    protected void onStart() {
+        if (!(new File(mScript)).exists()) {
             return;
         }
         
-        final Script _this = this;
         mShell = (new Shell.Builder())
             .useSH()
             .setOnSTDOUTLineListener(new StreamGobbler.OnLineListener() {
                 @Override
                 public void onLine(String line) {
-                    mOnLineListener.onLog(_this, line);
-                    mOnLineListener.onLine(Script.this, line, COLOR_STDOUT);
+                    log(line);
+                    offer(line, COLOR_STDOUT);
                 }
             })
             .setOnSTDERRLineListener(new StreamGobbler.OnLineListener() {                
                 @Override
                 public void onLine(String line) {
-                    mOnLineListener.onLog(_this, line);
-                    mOnLineListener.onLine(Script.this, line, COLOR_STDERR);
+                    log(line);
+                    offer(line, COLOR_STDERR);
                 }
             })
-            .addCommand("sh " + script)
+            .addCommand("sh " + mScript)
             .open();
     }
     
-    public void destroy() {
-        final Shell.Interactive shell = mShell;
-        if (shell != null) {
-            (new Thread(new Runnable() {            
-                @Override
-                public void run() {
-                    shell.kill();
-                    shell.close();
-                }
-            })).start();
-        }
+    @Override
+    protected void onStop() {
+        closeShell(mShell);
     }
 }
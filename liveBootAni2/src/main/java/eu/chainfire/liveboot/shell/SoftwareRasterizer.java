@@ -0,0 +1,144 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class SoftwareRasterizer {
+    // Renders a ScreenModel into an ARGB int[] on the CPU, from the alpha coverage of a glyph
+    // atlas (see GlyphBake). Only uses the fixed glyphs, the rest is drawn as FALLBACK. Nothing
+    // here touches GL or android.graphics, so it runs on any JVM; the GL side only has to upload
+    // the result. Not thread safe.
+
+    private final GlyphAtlas mAtlas;
+    private final ByteBuffer mAlpha;
+    private int mWidth;
+    private int mHeight;
+    private int[] mPixels;
+    private long mSerial = -1;
+
+    public SoftwareRasterizer(GlyphAtlas atlas, ByteBuffer alpha, int width, int height) {
+        // alpha: atlas.getWidth() * atlas.getHeight() bytes, of the fixed glyphs
+        mAtlas = atlas;
+        mAlpha = alpha;
+        resize(width, height);
+    }
+
+    public void resize(int width, int height) {
+        mWidth = Math.max(1, width);
+        mHeight = Math.max(1, height);
+        mPixels = new int[mWidth * mHeight];
+        mSerial = -1;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int[] getPixels() {
+        // row-major, top row first
+        return mPixels;
+    }
+
+    public GlyphAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    public int getRows() {
+        return mHeight / mAtlas.getCellHeight();
+    }
+
+    public int getColumns() {
+        return mWidth / mAtlas.getCellWidth();
+    }
+
+    public boolean render(ScreenModel model, int background) {
+        // returns false if the model didn't change since the last call
+        if (model.getSerial() == mSerial) return false;
+        mSerial = model.getSerial();
+
+        Arrays.fill(mPixels, background);
+        int rows = Math.min(model.getCount(), getRows());
+        for (int row = 0; row < rows; row++) {
+            drawRow(model, model.getSlot(row), mPixels, row * mAtlas.getCellHeight());
+        }
+        return true;
+    }
+
+    public void renderRow(ScreenModel model, int slot, int background, int[] band) {
+        // a single slot into band, getWidth() x cell height pixels, wherever it is on screen
+        Arrays.fill(band, 0, mWidth * mAtlas.getCellHeight(), background);
+        drawRow(model, slot, band, 0);
+    }
+
+    private void drawRow(ScreenModel model, int slot, int[] pixels, int y) {
+        String text = model.getText(slot);
+        if (text == null) return;
+        int start = model.getStart(slot);
+        int length = Math.min(model.getEnd(slot) - start, getColumns());
+        int color = model.getColor(slot);
+        for (int column = 0; column < length; column++) {
+            int index = mAtlas.indexOf(text.charAt(start + column));
+            if (index == GlyphAtlas.BLANK) continue;
+            if (index >= mAtlas.getFixedCount()) index = GlyphAtlas.FALLBACK - GlyphAtlas.FIRST;
+            drawGlyph(pixels, index, column * mAtlas.getCellWidth(), y, color);
+        }
+    }
+
+    private void drawGlyph(int[] pixels, int index, int x, int y, int color) {
+        int cellWidth = mAtlas.getCellWidth();
+        int cellHeight = mAtlas.getCellHeight();
+        int atlasWidth = mAtlas.getWidth();
+        int srcX = mAtlas.getX(index);
+        int srcY = mAtlas.getY(index);
+        int colorAlpha = color >>> 24;
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+
+        for (int j = 0; j < cellHeight; j++) {
+            int src = (srcY + j) * atlasWidth + srcX;
+            int dst = (y + j) * mWidth + x;
+            for (int i = 0; i < cellWidth; i++) {
+                int a = ((mAlpha.get(src + i) & 0xFF) * colorAlpha) / 255;
+                if (a == 0) continue;
+                int p = pixels[dst + i];
+                if (a == 255) {
+                    pixels[dst + i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                } else {
+                    // src over dst, not premultiplied
+                    int pa = p >>> 24;
+                    int pr = (p >> 16) & 0xFF;
+                    int pg = (p >> 8) & 0xFF;
+                    int pb = p & 0xFF;
+                    int da = (pa * (255 - a)) / 255;
+                    int oa = a + da;
+                    pixels[dst + i] =
+                            (oa << 24) |
+                            (((r * a + pr * da) / oa) << 16) |
+                            (((g * a + pg * da) / oa) << 8) |
+                            ((b * a + pb * da) / oa);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+public class SoftwareTextRenderer implements TextRenderer {
+    // Renders on the CPU with a SoftwareRasterizer, and only uploads the result as one RGBA
+    // texture, drawn as a single quad by the simplest program we can have. For when the atlas
+    // renderers can't be set up on the GPU at hand.
+
+    private static final String VERTEX_SHADER =
+            "attribute vec2 aPosition;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = vec4(aPosition * 2.0 - 1.0, 0.0, 1.0);\n" +
+            "    vTexCoord = vec2(aPosition.x, 1.0 - aPosition.y);\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "uniform sampler2D uTexture;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(uTexture, vTexCoord);\n" +
+            "}\n";
+
+    private static final float[] QUAD = new float[] { 0, 0, 1, 0, 0, 1, 1, 1 };
+
+    private final ScreenBuilder mScreen;
+    private final GlyphBake mPrebaked;
+    private final FloatBuffer mQuad;
+    private SoftwareRasterizer mRasterizer = null;
+    private IntBuffer mUpload = null;
+    private boolean mAllocated = false;
+    private int mLineHeight = 0;
+
+    private int mProgram;
+    private int mTexture;
+    private int mPosition;
+    private int mTextureUniform;
+
+    public SoftwareTextRenderer(ScreenBuilder screen, GlyphBake prebaked, int width, int height, int lineHeight) {
+        // prebaked may be null, it is only used if made for this line height
+        mScreen = screen;
+        mPrebaked = prebaked;
+        mQuad = ByteBuffer.allocateDirect(QUAD.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mQuad.put(QUAD).position(0);
+
+        mProgram = ShaderProgram.create(VERTEX_SHADER, FRAGMENT_SHADER);
+        mPosition = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTextureUniform = GLES20.glGetUniformLocation(mProgram, "uTexture");
+
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        mTexture = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        resize(width, height, lineHeight);
+    }
+
+    protected boolean isValid() {
+        return mProgram != 0;
+    }
+
+    public SoftwareRasterizer getRasterizer() {
+        return mRasterizer;
+    }
+
+    @Override
+    public void resize(int width, int height, int lineHeight) {
+        if ((mRasterizer == null) || (lineHeight != mLineHeight)) {
+            mLineHeight = lineHeight;
+            GlyphBake bake = ((mPrebaked != null) && (mPrebaked.getAtlas().getCellHeight() == lineHeight)) ? mPrebaked : GlyphBake.render(lineHeight);
+            mRasterizer = new SoftwareRasterizer(bake.getAtlas(), bake.getPixels(), width, height);
+        } else {
+            mRasterizer.resize(width, height);
+        }
+        mScreen.resize(mRasterizer.getRows(), mRasterizer.getColumns());
+        mUpload = ByteBuffer.allocateDirect(mRasterizer.getWidth() * mRasterizer.getHeight() * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        mAllocated = false;
+    }
+
+    @Override
+    public void draw() {
+        if (!isValid()) return;
+        if (mRasterizer.render(mScreen.get(), 0)) upload();
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glUniform1i(mTextureUniform, 0);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLES20.glEnableVertexAttribArray(mPosition);
+        GLES20.glVertexAttribPointer(mPosition, 2, GLES20.GL_FLOAT, false, 8, mQuad);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(mPosition);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    private void upload() {
+        // ARGB ints to RGBA bytes
+        int[] pixels = mRasterizer.getPixels();
+        mUpload.position(0);
+        for (int p : pixels) {
+            mUpload.put((p & 0xFF00FF00) | ((p >> 16) & 0xFF) | ((p & 0xFF) << 16));
+        }
+        mUpload.position(0);
+
+        int width = mRasterizer.getWidth();
+        int height = mRasterizer.getHeight();
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        if (!mAllocated) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mUpload);
+            mAllocated = true;
+        } else {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mUpload);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    @Override
+    public String getStats() {
+        return null;
+    }
+
+    @Override
+    public void destroy() {
+        if (mTexture != 0) {
+            GLES20.glDeleteTextures(1, new int[] { mTexture }, 0);
+            mTexture = 0;
+        }
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+public class StackFolder {
+    // Folds Java stack traces into a single summary row, per pid/tid. The exception header and
+    // its frames are swallowed, once the trace ends (another line from the same thread, or no
+    // more frames for TIMEOUT ms) a "FooException at Bar.baz (+42 frames)" row is injected into
+    // the pipeline's priority lane instead. Only priority (E/F) traces are folded: a summary
+    // jumps ahead of normal output, so a W/System.err trace passes through unfolded and in order.
+    // Only the display is affected, the saved log gets every line before it ever reaches the
+    // pipeline. If the lane is full the summary is kept and injected again on the next tick;
+    // only if MAX_PENDING summaries are waiting is the oldest one dropped.
+
+    private static final long TIMEOUT = 100L * 1000L * 1000L;
+    private static final int MAX_PENDING = 64;
+
+    private static class Trace {
+        public Object sender;
+        public String header;
+        public String prefix;
+        public String exception;
+        public String frame = null;
+        public int color;
+        public int continuations = 0;
+        public long last;
+        public String summary = null;
+    }
+
+    private final Pipeline mPipeline;
+    private final Pipeline.Handler mHandler;
+    private final HashMap<Long, Trace> mTraces = new HashMap<Long, Trace>();
+    private final ArrayList<Trace> mPending = new ArrayList<Trace>();
+
+    private volatile long mStatFolded = 0;
+    private volatile long mStatDeferred = 0;
+    private volatile long mStatDropped = 0;
+
+    public StackFolder(Pipeline pipeline, Pipeline.Handler handler) {
+        mPipeline = pipeline;
+        mHandler = handler;
+    }
+
+    public boolean fold(LineRecord record) {
+        // filter thread only; returns true if the record was absorbed
+        long now = System.nanoTime();
+        Long key = ((long)record.pid << 32) | ((long)record.tid & 0xFFFFFFFFL);
+        String text = record.text;
+        int body = skipWhitespace(text, record.body);
+
+        Trace trace = mTraces.get(key);
+        if ((trace != null) && record.priority && isContinuation(text, body)) {
+            if ((trace.frame == null) && text.startsWith("at ", body)) {
+                trace.frame = frameName(text, body + 3);
+            }
+            trace.continuations++;
+            trace.last = now;
+            return true;
+        }
+        if (trace != null) {
+            flush(key);
+        }
+
+        if (!record.priority) return false;
+
+        String exception = exceptionName(text, body);
+        if (exception != null) {
+            trace = new Trace();
+            trace.sender = record.sender;
+            trace.header = text;
+            trace.prefix = text.substring(0, record.body);
+            trace.exception = exception;
+            trace.color = record.color;
+            trace.last = now;
+            mTraces.put(key, trace);
+            return true;
+        }
+        return false;
+    }
+
+    public void tick() {
+        retry();
+        if (mTraces.size() == 0) return;
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Long, Trace>> i = mTraces.entrySet().iterator();
+        while (i.hasNext()) {
+            Trace trace = i.next().getValue();
+            if (now - trace.last >= TIMEOUT) {
+                emit(trace);
+                i.remove();
+            }
+        }
+    }
+
+    private void flush(Long key) {
+        Trace trace = mTraces.remove(key);
+        if (trace != null) emit(trace);
+    }
+
+    private void retry() {
+        // in order, so summaries don't overtake each other
+        while (mPending.size() > 0) {
+            Trace trace = mPending.get(0);
+            if (!inject(trace)) return;
+            mPending.remove(0);
+        }
+    }
+
+    private boolean inject(Trace trace) {
+        return mPipeline.inject(mHandler, trace.sender, trace.summary, trace.color, true);
+    }
+
+    private void emit(Trace trace) {
+        if (trace.continuations == 0) {
+            // just a message that looked like an exception
+            trace.summary = trace.header;
+        } else if (trace.frame == null) {
+            trace.summary = String.format(Locale.ENGLISH, "%s%s (+%d frames)", trace.prefix, trace.exception, trace.continuations);
+        } else {
+            trace.summary = String.format(Locale.ENGLISH, "%s%s at %s (+%d frames)", trace.prefix, trace.exception, trace.frame, trace.continuations - 1);
+        }
+        if (trace.continuations > 0) mStatFolded++;
+        if ((mPending.size() == 0) && inject(trace)) return;
+
+        // priority lane is full
+        mStatDeferred++;
+        if (mPending.size() == MAX_PENDING) {
+            mPending.remove(0);
+            mStatDropped++;
+        }
+        mPending.add(trace);
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%d traces folded, %d deferred, %d dropped", mStatFolded, mStatDeferred, mStatDropped);
+    }
+
+    private static int skipWhitespace(String text, int index) {
+        while ((index < text.length()) && ((text.charAt(index) == ' ') || (text.charAt(index) == '\t'))) index++;
+        return index;
+    }
+
+    private static boolean isContinuation(String text, int body) {
+        return
+                text.startsWith("at ", body) ||
+                text.startsWith("... ", body) ||
+                text.startsWith("Caused by: ", body) ||
+                text.startsWith("Suppressed: ", body);
+    }
+
+    private static String exceptionName(String text, int body) {
+        // "java.lang.IllegalStateException: message" --> "IllegalStateException"
+        int end = text.indexOf(':', body);
+        if (end == -1) end = text.length();
+        int dot = -1;
+        for (int i = body; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                dot = i;
+            } else if (!Character.isJavaIdentifierPart(c)) {
+                return null;
+            }
+        }
+        if ((dot == -1) || (dot == end - 1)) return null;
+        String name = text.substring(dot + 1, end);
+        if (name.endsWith("Exception") || name.endsWith("Error") || name.endsWith("Throwable")) {
+            return name;
+        }
+        return null;
+    }
+
+    private static String frameName(String text, int start) {
+        // "com.example.Bar.baz(Bar.java:12)" --> "Bar.baz"
+        int end = text.indexOf('(', start);
+        if (end == -1) end = text.length();
+        int method = text.lastIndexOf('.', end - 1);
+        if (method < start) return text.substring(start, end);
+        int cls = text.lastIndexOf('.', method - 1);
+        return text.substring(cls < start ? start : cls + 1, end);
+    }
+}
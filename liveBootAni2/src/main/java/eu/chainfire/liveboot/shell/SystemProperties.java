@@ -21,11 +21,15 @@ import eu.chainfire.librootjava.Logger;
 import java.lang.reflect.Method;
 
 public class SystemProperties {
+    private static Method sGet = null;
+
     public static String get(String key, String defaultValue) {
         try {
-            final Class<?> systemProperties = Class.forName("android.os.SystemProperties");
-            final Method get = systemProperties.getMethod("get", String.class, String.class);
-            return (String) get.invoke(null, key, defaultValue);
+            if (sGet == null) {
+                final Class<?> systemProperties = Class.forName("android.os.SystemProperties");
+                sGet = systemProperties.getMethod("get", String.class, String.class);
+            }
+            return (String) sGet.invoke(null, key, defaultValue);
         } catch (Exception e) {
             Logger.ex(e);
             return defaultValue;
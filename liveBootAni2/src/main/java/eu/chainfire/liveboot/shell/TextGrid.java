@@ -0,0 +1,150 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import java.nio.ByteBuffer;
+
+public class TextGrid {
+    // Vertices for a ScreenModel of rows x columns cells. Every slot of the model's row ring owns
+    // a fixed range of the vertex buffer, columns * VERTICES_PER_GLYPH vertices, so a new line
+    // only rewrites its own range and scrolling never touches the others. Only visible glyphs get
+    // a quad, the rest of the range is left zeroed (degenerate). Vertex layout, VERTEX_SIZE bytes:
+    //   short column (+1 for the right edge), short row edge (0 top, 1 bottom), short slot, pad,
+    //   ushort u, ushort v (normalized), ubyte r, g, b, a (normalized)
+    // The on-screen row of a slot is (slot - head + rows) % rows, that's up to the shader.
+    //
+    // Render thread only.
+
+    public static final int VERTEX_SIZE = 16;
+    public static final int VERTICES_PER_GLYPH = 6;
+    public static final int GLYPH_SIZE = VERTEX_SIZE * VERTICES_PER_GLYPH;
+
+    private static final byte[] ZERO = new byte[GLYPH_SIZE * 16];
+
+    private int mRows;
+    private int mColumns;
+    private int[] mWritten; // glyphs in the vertex buffer, per slot
+    private long[] mSerial; // model serial the slot was written from
+    private long mGeneration = -1; // of the atlas, when written
+
+    public TextGrid(int rows, int columns) {
+        reset(rows, columns);
+    }
+
+    public void reset(int rows, int columns) {
+        // also after the vertex buffer was lost or reallocated (zeroed)
+        mRows = Math.max(1, rows);
+        mColumns = Math.max(1, columns);
+        mWritten = new int[mRows];
+        mSerial = new long[mRows];
+        mGeneration = -1;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getVertexBufferSize() {
+        return mRows * mColumns * GLYPH_SIZE;
+    }
+
+    public boolean matches(ScreenModel model) {
+        return (model.getRows() == mRows) && (model.getColumns() == mColumns);
+    }
+
+    public int collect(ScreenModel model, ByteBuffer vertices, GlyphAtlas atlas, int[] ranges) {
+        // writes the vertices of every slot that changed since the last call into vertices (laid
+        // out like the GL buffer) and stores the (offset, size) byte ranges to upload in ranges;
+        // returns the range count. If the atlas evicted a page, every slot is written again: the
+        // atlas doesn't evict pages used in the same frame, so a second pass is always enough.
+        if (!matches(model)) return 0;
+        atlas.nextFrame();
+        long generation = atlas.getGeneration();
+        boolean all = (generation != mGeneration);
+        int count;
+        while (true) {
+            count = 0;
+            for (int slot = 0; slot < mRows; slot++) {
+                if (!all && (model.getSerial(slot) == mSerial[slot])) continue;
+                mSerial[slot] = model.getSerial(slot);
+
+                int offset = slot * mColumns * GLYPH_SIZE;
+                vertices.position(offset);
+                String text = model.getText(slot);
+                int glyphs = (text == null) ? 0 : writeRow(vertices, atlas, text, model.getStart(slot), model.getEnd(slot), model.getColor(slot), slot);
+                for (int i = glyphs; i < mWritten[slot]; i += ZERO.length / GLYPH_SIZE) {
+                    vertices.put(ZERO, 0, Math.min(ZERO.length, (mWritten[slot] - i) * GLYPH_SIZE));
+                }
+                int size = Math.max(glyphs, mWritten[slot]) * GLYPH_SIZE;
+                mWritten[slot] = glyphs;
+                if (size > 0) {
+                    ranges[count * 2] = offset;
+                    ranges[count * 2 + 1] = size;
+                    count++;
+                }
+            }
+            if (all || (atlas.getGeneration() == generation)) break;
+            all = true;
+        }
+        mGeneration = atlas.getGeneration();
+        vertices.position(0);
+        return count;
+    }
+
+    private int writeRow(ByteBuffer out, GlyphAtlas atlas, String text, int start, int end, int color, int slot) {
+        int glyphs = 0;
+        int length = Math.min(end - start, mColumns);
+        for (int column = 0; column < length; column++) {
+            int index = atlas.indexOf(text.charAt(start + column));
+            if (index == GlyphAtlas.BLANK) continue;
+            writeGlyph(out, atlas, index, column, slot, color);
+            glyphs++;
+        }
+        return glyphs;
+    }
+
+    private static void writeGlyph(ByteBuffer out, GlyphAtlas atlas, int index, int column, int slot, int color) {
+        short u0 = atlas.getU0(index);
+        short v0 = atlas.getV0(index);
+        short u1 = atlas.getU1(index);
+        short v1 = atlas.getV1(index);
+        // two triangles: top-left, bottom-left, top-right; top-right, bottom-left, bottom-right
+        writeVertex(out, column, 0, slot, u0, v0, color);
+        writeVertex(out, column, 1, slot, u0, v1, color);
+        writeVertex(out, column + 1, 0, slot, u1, v0, color);
+        writeVertex(out, column + 1, 0, slot, u1, v0, color);
+        writeVertex(out, column, 1, slot, u0, v1, color);
+        writeVertex(out, column + 1, 1, slot, u1, v1, color);
+    }
+
+    private static void writeVertex(ByteBuffer out, int x, int y, int slot, short u, short v, int color) {
+        out.putShort((short)x);
+        out.putShort((short)y);
+        out.putShort((short)slot);
+        out.putShort((short)0);
+        out.putShort(u);
+        out.putShort(v);
+        out.put((byte)(color >> 16));
+        out.put((byte)(color >> 8));
+        out.put((byte)color);
+        out.put((byte)(color >>> 24));
+    }
+}
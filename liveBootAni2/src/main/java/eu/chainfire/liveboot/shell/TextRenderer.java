@@ -0,0 +1,30 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+public interface TextRenderer {
+    // Draws the latest model of a ScreenBuilder, and sizes the builder to the area. GL thread
+    // only; draw() renders into the current viewport, which is width x height.
+
+    void draw();
+
+    void resize(int width, int height, int lineHeight);
+
+    String getStats(); // null if nothing to report
+
+    void destroy();
+}
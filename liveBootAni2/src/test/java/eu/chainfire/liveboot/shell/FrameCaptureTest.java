@@ -0,0 +1,269 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameCaptureTest {
+    // Encodes frames, decodes them the way a viewer would, and compares every decoded frame
+    // with the same screens rendered in full.
+
+    private static final int WIDTH = 24 * 8;
+    private static final int LINE_HEIGHT = 16;
+    private static final int STICKY_HEIGHT = 2 * LINE_HEIGHT;
+    private static final int HEIGHT = STICKY_HEIGHT + 4 * LINE_HEIGHT + 5; // not a whole row
+    private static final int BACKGROUND = 0xFF333333;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private GlyphBake mBake;
+    private ScreenBuilder mScreen;
+    private ScreenBuilder mSticky;
+    private FrameCapture mCapture;
+    private ByteArrayOutputStream mBytes;
+    private DataOutputStream mOut;
+    private Decoder mDecoder;
+
+    private static class Decoder {
+        private final DataInputStream mIn;
+        public int width;
+        public int height;
+        public int lineHeight;
+        public final int background;
+        public int[] areaY;
+        public int[] areaHeight;
+        public int[] rows;
+        public int[] head;
+        public int[][][] bands; // area, slot, pixels
+        public int frames = 0;
+        public int resizes = 0;
+        public int bandsRead = 0;
+
+        public Decoder(byte[] data) throws Exception {
+            mIn = new DataInputStream(new ByteArrayInputStream(data));
+            assertEquals(0x4c424643, mIn.readInt());
+            assertEquals(3, mIn.readInt());
+            width = mIn.readInt();
+            height = mIn.readInt();
+            lineHeight = mIn.readInt();
+            background = mIn.readInt();
+            readAreas();
+        }
+
+        private void readAreas() throws Exception {
+            int areas = mIn.readInt();
+            areaY = new int[areas];
+            areaHeight = new int[areas];
+            rows = new int[areas];
+            head = new int[areas];
+            bands = new int[areas][0][];
+            for (int i = 0; i < areas; i++) {
+                areaY[i] = mIn.readInt();
+                areaHeight[i] = mIn.readInt();
+            }
+        }
+
+        public boolean next() throws Exception {
+            if (mIn.available() == 0) return false;
+            mIn.readInt(); // ms
+            int length = mIn.readInt();
+            if (length == -1) {
+                // everything starts over
+                width = mIn.readInt();
+                height = mIn.readInt();
+                lineHeight = mIn.readInt();
+                readAreas();
+                resizes++;
+                return next();
+            }
+            byte[] packed = new byte[length];
+            mIn.readFully(packed);
+            DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(packed)));
+            for (int i = 0; i < rows.length; i++) {
+                int r = in.readInt();
+                if (r != rows[i]) {
+                    rows[i] = r;
+                    bands[i] = new int[r][width * lineHeight];
+                    for (int[] band : bands[i]) Arrays.fill(band, background);
+                }
+                head[i] = in.readInt();
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    int[] band = bands[i][in.readInt()];
+                    for (int k = 0; k < band.length; k++) band[k] = in.readInt();
+                    bandsRead++;
+                }
+            }
+            assertEquals(-1, in.read());
+            frames++;
+            return true;
+        }
+
+        public int[] compose() {
+            int[] frame = new int[width * height];
+            Arrays.fill(frame, background);
+            for (int i = 0; i < rows.length; i++) {
+                for (int row = 0; row < rows[i]; row++) {
+                    if ((row + 1) * lineHeight > areaHeight[i]) break;
+                    int[] band = bands[i][(head[i] + row) % rows[i]];
+                    System.arraycopy(band, 0, frame, (areaY[i] + row * lineHeight) * width, band.length);
+                }
+            }
+            return frame;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mBake = SoftwareRasterizerTest.loadBake(mFolder);
+        mScreen = new ScreenBuilder((HEIGHT - STICKY_HEIGHT) / LINE_HEIGHT, WIDTH / 8);
+        mSticky = new ScreenBuilder(STICKY_HEIGHT / LINE_HEIGHT, WIDTH / 8);
+        mCapture = new FrameCapture(mScreen, mSticky, WIDTH, HEIGHT, STICKY_HEIGHT, LINE_HEIGHT, mBake, BACKGROUND, 1, null);
+        mCapture.prepare();
+        mBytes = new ByteArrayOutputStream();
+        mOut = new DataOutputStream(mBytes);
+        mCapture.writeHeader(mOut);
+    }
+
+    private int[] render() {
+        return render(STICKY_HEIGHT);
+    }
+
+    private int[] render(int stickyHeight) {
+        // the whole screen, the way the renderers draw it
+        int[] frame = new int[WIDTH * HEIGHT];
+        SoftwareRasterizer sticky = new SoftwareRasterizer(mBake.getAtlas(), mBake.getPixels(), WIDTH, stickyHeight);
+        sticky.render(mSticky.get(), BACKGROUND);
+        System.arraycopy(sticky.getPixels(), 0, frame, 0, sticky.getPixels().length);
+        SoftwareRasterizer text = new SoftwareRasterizer(mBake.getAtlas(), mBake.getPixels(), WIDTH, HEIGHT - stickyHeight);
+        text.render(mScreen.get(), BACKGROUND);
+        System.arraycopy(text.getPixels(), 0, frame, stickyHeight * WIDTH, text.getPixels().length);
+        return frame;
+    }
+
+    private void assertFrame(Decoder decoder, int[] expected) throws Exception {
+        assertTrue(decoder.next());
+        int[] actual = decoder.compose();
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                fail(String.format("frame %d: pixel %d,%d is %08x, expected %08x", decoder.frames, i % WIDTH, i / WIDTH, actual[i], expected[i]));
+            }
+        }
+    }
+
+    private void frame(List<int[]> expected) throws Exception {
+        assertTrue(mCapture.writeFrame(mOut, expected.size()));
+        expected.add(render());
+    }
+
+    @Test
+    public void matchesFullRender() throws Exception {
+        List<int[]> expected = new ArrayList<int[]>();
+        frame(expected);
+        mScreen.add("first line", 0xFFFFFFFF, true);
+        frame(expected);
+        mSticky.add("E/crash: sticky", 0xFFFF0000, true);
+        mScreen.add("a line long enough to wrap at a space", 0xFF00FF00, true);
+        frame(expected);
+        for (int i = 0; i < 7; i++) {
+            mScreen.add("scrolling " + i, 0x80FFFF00, true);
+            frame(expected);
+        }
+
+        Decoder decoder = new Decoder(mBytes.toByteArray());
+        for (int[] frame : expected) assertFrame(decoder, frame);
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void onlyChangedRows() throws Exception {
+        for (int i = 0; i < 4; i++) mScreen.add("line " + i, 0xFFFFFFFF, true);
+        mCapture.writeFrame(mOut, 0);
+
+        // unchanged screens write nothing
+        int size = mBytes.size();
+        assertFalse(mCapture.writeFrame(mOut, 1));
+        assertEquals(size, mBytes.size());
+
+        // a scroll writes one row
+        mScreen.add("line 4", 0xFFFFFFFF, true);
+        mCapture.writeFrame(mOut, 2);
+        Decoder decoder = new Decoder(mBytes.toByteArray());
+        decoder.next();
+        assertEquals(4, decoder.bandsRead);
+        decoder.next();
+        assertEquals(5, decoder.bandsRead);
+        assertEquals(1, decoder.head[1]);
+    }
+
+    @Test
+    public void resizeStartsOver() throws Exception {
+        for (int i = 0; i < 4; i++) mScreen.add("line " + i, 0xFFFFFFFF, true);
+        mCapture.writeFrame(mOut, 0);
+        mScreen.resize(2, WIDTH / 8);
+        mCapture.writeFrame(mOut, 1);
+
+        Decoder decoder = new Decoder(mBytes.toByteArray());
+        decoder.next();
+        assertFrame(decoder, render());
+        assertEquals(2, decoder.rows[1]);
+    }
+
+    @Test
+    public void resizeWritesAreas() throws Exception {
+        // the sticky area grows by a row, the text area shrinks and moves down
+        for (int i = 0; i < 4; i++) mScreen.add("line " + i, 0xFFFFFFFF, true);
+        mSticky.add("E/crash: sticky", 0xFFFF0000, true);
+        int[] before = render();
+        mCapture.writeFrame(mOut, 0);
+
+        int stickyHeight = STICKY_HEIGHT + LINE_HEIGHT;
+        mSticky.resize(3, WIDTH / 8);
+        mScreen.resize(3, WIDTH / 8);
+        mCapture.resize(WIDTH, HEIGHT, stickyHeight, LINE_HEIGHT);
+        assertTrue(mCapture.writeFrame(mOut, 1));
+
+        Decoder decoder = new Decoder(mBytes.toByteArray());
+        assertFrame(decoder, before);
+        assertEquals(5, decoder.bandsRead);
+        assertFrame(decoder, render(stickyHeight));
+        assertEquals(1, decoder.resizes);
+        assertEquals(stickyHeight, decoder.areaY[1]);
+        assertEquals(HEIGHT - stickyHeight, decoder.areaHeight[1]);
+        // every slot that has a row is written again: the sticky line and the last three lines
+        assertEquals(5 + 1 + 3, decoder.bandsRead);
+        assertFalse(decoder.next());
+    }
+}
@@ -0,0 +1,91 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LineLayoutTest {
+    private final int[] mBreaks = new int[LineLayout.MAX_ROWS];
+
+    private String[] layout(String text, int columns, boolean wordWrap) {
+        int rows = LineLayout.layout(text, columns, wordWrap, mBreaks);
+        String[] ret = new String[rows];
+        int start = 0;
+        for (int i = 0; i < rows; i++) {
+            ret[i] = text.substring(start, mBreaks[i]);
+            start = mBreaks[i];
+        }
+        return ret;
+    }
+
+    private static void assertRows(String[] expected, String[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("row " + i, expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void fits() {
+        assertRows(new String[] { "" }, layout("", 10, true));
+        assertRows(new String[] { "0123456789" }, layout("0123456789", 10, true));
+    }
+
+    @Test
+    public void wordBreak() {
+        // broken after the last space, which stays on the row
+        assertRows(new String[] { "hello ", "world ", "foo" }, layout("hello world foo", 8, true));
+    }
+
+    @Test
+    public void hardBreak() {
+        assertRows(new String[] { "abcde", "fghij", "klmno", "p" }, layout("abcdefghijklmnop", 5, true));
+    }
+
+    @Test
+    public void hardBreakWhenSpaceTooEarly() {
+        // breaking at the space would leave the row less than half full
+        assertRows(new String[] { "a bcdefg", "hij" }, layout("a bcdefghij", 8, true));
+    }
+
+    @Test
+    public void spaceAtColumnLimit() {
+        // a space that doesn't fit starts the next row, it isn't swallowed
+        assertRows(new String[] { "abcde", " fghi", "j" }, layout("abcde fghij", 5, true));
+    }
+
+    @Test
+    public void maxRows() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) sb.append((char)('a' + (i % 26)));
+        String text = sb.toString();
+        int rows = LineLayout.layout(text, 10, true, mBreaks);
+        assertEquals(LineLayout.MAX_ROWS, rows);
+        for (int i = 0; i < rows; i++) {
+            assertEquals((i + 1) * 10, mBreaks[i]);
+        }
+    }
+
+    @Test
+    public void noWordWrap() {
+        // one row, cut at the column limit
+        assertRows(new String[] { "hello worl" }, layout("hello world foo", 10, false));
+        assertRows(new String[] { "short" }, layout("short", 10, false));
+    }
+}
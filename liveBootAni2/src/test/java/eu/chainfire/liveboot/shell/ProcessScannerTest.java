@@ -0,0 +1,198 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessScannerTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mProc;
+    private ProcessScanner mScanner;
+
+    @Before
+    public void setUp() throws Exception {
+        mProc = mFolder.newFolder("proc");
+        mScanner = new ProcessScanner(mProc);
+    }
+
+    private static void write(File file, byte[] data) throws Exception {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    private void process(int pid, int ppid, String comm, long startTime, String cmdline) throws Exception {
+        // cmdline: argv joined by spaces, null for a kernel thread
+        File dir = new File(mProc, String.valueOf(pid));
+        dir.mkdirs();
+        String stat = String.format(Locale.ENGLISH, "%d (%s) S %d %d %d 0 -1 4194560 100 0 0 0 1 2 0 0 20 0 1 0 %d 12345678 100\n",
+                pid, comm, ppid, pid, pid, startTime);
+        write(new File(dir, "stat"), stat.getBytes("UTF-8"));
+        byte[] args = (cmdline == null) ? new byte[0] : (cmdline.replace(' ', '\0') + "\0").getBytes("UTF-8");
+        write(new File(dir, "cmdline"), args);
+    }
+
+    private void exit(int pid) {
+        File dir = new File(mProc, String.valueOf(pid));
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void nameIsArgv0() throws Exception {
+        process(100, 1, "bootanimation", 500, "/system/bin/bootanimation --foo");
+        ProcessScanner.Entry entry = mScanner.get(100);
+        assertNotNull(entry);
+        assertEquals(100, entry.pid);
+        assertEquals(1, entry.ppid);
+        assertEquals(500, entry.startTime);
+        assertEquals("/system/bin/bootanimation", entry.name);
+        assertTrue(mScanner.isAlive(100, "bootanim"));
+        assertFalse(mScanner.isAlive(100, "zygote"));
+        assertNull(mScanner.get(101));
+    }
+
+    @Test
+    public void commWithSpacesAndParentheses() throws Exception {
+        // the comm runs up to the last ')', fields after it must still line up
+        process(200, 7, "a b) c (d)", 12345, null);
+        ProcessScanner.Entry entry = mScanner.get(200);
+        assertNotNull(entry);
+        assertEquals("a b) c (d)", entry.name);
+        assertEquals(7, entry.ppid);
+        assertEquals(12345, entry.startTime);
+    }
+
+    @Test
+    public void kernelThreadUsesComm() throws Exception {
+        process(2, 0, "kthreadd", 1, null);
+        process(30, 2, "kworker/0:1H", 3, null);
+        assertEquals("kthreadd", mScanner.get(2).name);
+        assertEquals("kworker/0:1H", mScanner.get(30).name);
+
+        List<Integer> children = mScanner.findChildren(2);
+        assertEquals(1, children.size());
+        assertEquals(30, (int)children.get(0));
+    }
+
+    @Test
+    public void cachedWhileStartTimeMatches() throws Exception {
+        process(300, 1, "logcat", 1000, "logcat -v brief");
+        ProcessScanner.Entry first = mScanner.get(300);
+
+        // cmdline is only read once per process
+        process(300, 1, "logcat", 1000, "changed");
+        ProcessScanner.Entry second = mScanner.get(300);
+        assertSame(first, second);
+        assertEquals("logcat", second.name);
+    }
+
+    @Test
+    public void reusedPidIsNoticed() throws Exception {
+        process(400, 1, "bootanimation", 1000, "/system/bin/bootanimation");
+        ProcessScanner.Entry first = mScanner.get(400);
+        assertTrue(mScanner.isAlive(400, "bootanim"));
+
+        exit(400);
+        assertFalse(mScanner.isAlive(400, "bootanim"));
+
+        // same pid, new process
+        process(400, 55, "sh", 2000, "/system/bin/sh");
+        ProcessScanner.Entry second = mScanner.get(400);
+        assertNotSame(first, second);
+        assertEquals("/system/bin/sh", second.name);
+        assertEquals(55, second.ppid);
+        assertFalse(mScanner.isAlive(400, "bootanim"));
+
+        // same pid, new process, without the scanner seeing it exit
+        process(400, 1, "bootanimation", 3000, "/system/bin/bootanimation");
+        assertTrue(mScanner.isAlive(400, "bootanim"));
+    }
+
+    @Test
+    public void scanSkipsNonPids() throws Exception {
+        process(500, 1, "init", 1, "/init");
+        new File(mProc, "self").mkdirs();
+        new File(mProc, "sys").mkdirs();
+        new File(mProc, "123abc").mkdirs();
+        write(new File(mProc, "stat"), "cpu 1 2 3 4 5\n".getBytes("UTF-8"));
+
+        List<ProcessScanner.Entry> entries = mScanner.scan();
+        assertEquals(1, entries.size());
+        assertEquals(500, entries.get(0).pid);
+    }
+
+    @Test
+    public void scanPrunesExited() throws Exception {
+        for (int pid = 1000; pid < 1010; pid++) {
+            process(pid, 1, "worker", pid, "worker" + pid);
+        }
+        assertEquals(10, mScanner.scan().size());
+        assertEquals(10, mScanner.findByName("worker").size());
+
+        // exits the scanner only notices by their absence from the listing
+        for (int pid = 1001; pid < 1010; pid++) {
+            exit(pid);
+        }
+        ProcessScanner.Entry kept = mScanner.get(1000);
+        List<ProcessScanner.Entry> entries = mScanner.scan();
+        assertEquals(1, entries.size());
+        assertSame(kept, entries.get(0));
+
+        // with the cache pruned, a pid coming back with the same start time is read again
+        process(1005, 1, "worker", 1005, "reborn");
+        assertEquals("reborn", mScanner.get(1005).name);
+    }
+
+    @Test
+    public void scanKeepsCacheWhileMostAlive() throws Exception {
+        for (int pid = 2000; pid < 2004; pid++) {
+            process(pid, 1, "worker", pid, "worker" + pid);
+        }
+        mScanner.scan();
+
+        // one of four gone is below the pruning threshold
+        exit(2003);
+        assertEquals(3, mScanner.scan().size());
+        process(2003, 1, "worker", 2003, "reborn");
+        assertEquals("worker2003", mScanner.get(2003).name);
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ScreenBuilderTest {
+    private static String[] rows(ScreenModel model) {
+        String[] ret = new String[model.getCount()];
+        for (int row = 0; row < ret.length; row++) {
+            ret[row] = model.getLine(row);
+        }
+        return ret;
+    }
+
+    private static void assertRows(String[] expected, ScreenModel model) {
+        String[] actual = rows(model);
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("row " + i, expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void scrolls() {
+        ScreenBuilder builder = new ScreenBuilder(3, 20);
+        for (int i = 0; i < 5; i++) builder.add("line " + i, 0, true);
+        assertRows(new String[] { "line 2", "line 3", "line 4" }, builder.get());
+    }
+
+    @Test
+    public void wrapsIntoSpans() {
+        ScreenBuilder builder = new ScreenBuilder(4, 5);
+        builder.add("aaaa bbbb", 0, true);
+        ScreenModel model = builder.get();
+        assertRows(new String[] { "aaaa ", "bbbb" }, model);
+        // both rows share the line's text
+        int first = model.getSlot(0);
+        int second = model.getSlot(1);
+        assertSame(model.getText(first), model.getText(second));
+        assertEquals(5, model.getStart(second));
+        assertEquals(9, model.getEnd(second));
+    }
+
+    @Test
+    public void resizeFewerRowsKeepsNewest() {
+        ScreenBuilder builder = new ScreenBuilder(4, 20);
+        for (int i = 0; i < 10; i++) builder.add("line " + i, 0, true);
+        builder.resize(2, 20);
+        ScreenModel model = builder.get();
+        assertEquals(2, model.getRows());
+        assertRows(new String[] { "line 8", "line 9" }, model);
+
+        // and keeps scrolling from there
+        builder.add("line 10", 0, true);
+        assertRows(new String[] { "line 9", "line 10" }, builder.get());
+    }
+
+    @Test
+    public void resizeMoreRowsKeepsVisible() {
+        // lines that scrolled out are gone, they aren't brought back
+        ScreenBuilder builder = new ScreenBuilder(2, 20);
+        for (int i = 0; i < 5; i++) builder.add("line " + i, 0, true);
+        builder.resize(4, 20);
+        assertRows(new String[] { "line 3", "line 4" }, builder.get());
+    }
+
+    @Test
+    public void resizeRewraps() {
+        ScreenBuilder builder = new ScreenBuilder(3, 20);
+        builder.add("aaaa bbbb", 0, true);
+        builder.add("cccc", 0, true);
+        builder.resize(3, 5);
+        assertRows(new String[] { "aaaa ", "bbbb", "cccc" }, builder.get());
+
+        builder.resize(3, 20);
+        assertRows(new String[] { "aaaa bbbb", "cccc" }, builder.get());
+    }
+
+    @Test
+    public void resizeCutsOldestLine() {
+        // the oldest line that's still visible may only partly fit, its last rows are kept
+        ScreenBuilder builder = new ScreenBuilder(3, 10);
+        builder.add("0123456789abcdefghij", 0, true);
+        builder.add("x", 0, true);
+        assertRows(new String[] { "0123456789", "abcdefghij", "x" }, builder.get());
+        builder.resize(2, 10);
+        assertRows(new String[] { "abcdefghij", "x" }, builder.get());
+    }
+
+    @Test
+    public void resizeMarksEverySlot() {
+        ScreenBuilder builder = new ScreenBuilder(3, 20);
+        for (int i = 0; i < 3; i++) builder.add("line " + i, 0, true);
+        builder.resize(3, 10);
+        ScreenModel model = builder.get();
+        for (int slot = 0; slot < model.getRows(); slot++) {
+            assertEquals(model.getSerial(), model.getSerial(slot));
+        }
+    }
+
+    @Test
+    public void updateReplacesInPlace() {
+        Object tag = new Object();
+        ScreenBuilder builder = new ScreenBuilder(3, 20);
+        builder.add("line 0", 0, true);
+        builder.update(tag, "status 0", 0, true);
+        builder.add("line 1", 0, true);
+        builder.update(tag, "status 1", 0, true);
+        assertRows(new String[] { "line 0", "status 1", "line 1" }, builder.get());
+
+        // only the status slot changed
+        ScreenModel model = builder.get();
+        assertEquals(model.getSerial(), model.getSerial(model.getSlot(1)));
+        assertEquals(model.getSerial() - 1, model.getSerial(model.getSlot(2)));
+    }
+
+    @Test
+    public void updateAddsWhenScrolledOut() {
+        Object tag = new Object();
+        ScreenBuilder builder = new ScreenBuilder(2, 20);
+        builder.update(tag, "status 0", 0, true);
+        builder.add("line 0", 0, true);
+        builder.add("line 1", 0, true);
+        builder.update(tag, "status 1", 0, true);
+        assertRows(new String[] { "line 1", "status 1" }, builder.get());
+    }
+
+    @Test
+    public void updateAddsWhenRowsChange() {
+        Object tag = new Object();
+        ScreenBuilder builder = new ScreenBuilder(4, 5);
+        builder.update(tag, "aaaa", 0, true);
+        builder.add("x", 0, true);
+        builder.update(tag, "aaaa bbbb", 0, true);
+        assertRows(new String[] { "aaaa", "x", "aaaa ", "bbbb" }, builder.get());
+    }
+}
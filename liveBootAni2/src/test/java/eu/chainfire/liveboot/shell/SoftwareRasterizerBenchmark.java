@@ -0,0 +1,67 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+public class SoftwareRasterizerBenchmark {
+    // Full frames at 1080x1920 with every row filled, the worst case for render(). The fallback
+    // renderer draws at most one such frame per model change. Reports the time per frame, the
+    // bound only catches pathological regressions, not a slow test machine.
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int WARMUP = 20;
+    private static final int FRAMES = 100;
+    private static final long MAX_MS_PER_FRAME = 250;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void render() throws Exception {
+        GlyphBake bake = SoftwareRasterizerTest.loadBake(mFolder);
+        SoftwareRasterizer rasterizer = new SoftwareRasterizer(bake.getAtlas(), bake.getPixels(), WIDTH, HEIGHT);
+        ScreenBuilder screen = new ScreenBuilder(rasterizer.getRows(), rasterizer.getColumns());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < rasterizer.getColumns(); i++) {
+            sb.append("[ 12.345678] init: service 'bootanim' ").append(i).append(' ');
+        }
+        String line = sb.toString();
+        for (int i = 0; i < rasterizer.getRows(); i++) screen.add(line, 0xFFFFFFFF, false);
+
+        for (int i = 0; i < WARMUP; i++) {
+            screen.add(line, 0xFFFFFFFF, false);
+            rasterizer.render(screen.get(), 0xFF000000);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            screen.add(line, 0xFFFFFFFF, false);
+            rasterizer.render(screen.get(), 0xFF000000);
+        }
+        double ms = (System.nanoTime() - start) / 1000000.0d / FRAMES;
+        System.out.println(String.format(Locale.ENGLISH, "SoftwareRasterizer.render: %dx%d, %dx%d cells, %.2fms/frame",
+                WIDTH, HEIGHT, rasterizer.getColumns(), rasterizer.getRows(), ms));
+        assertTrue(ms < MAX_MS_PER_FRAME);
+    }
+}
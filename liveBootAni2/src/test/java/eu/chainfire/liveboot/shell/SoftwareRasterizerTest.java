@@ -0,0 +1,191 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SoftwareRasterizerTest {
+    // Renders fixed screens through a checked-in atlas (liveboot.glyphs, 8x16 cells, baked from
+    // DejaVu Sans Mono as GlyphBake.render needs android.graphics) and compares the pixels with
+    // checked-in golden dumps (<name>.argb: big endian ARGB ints, row-major). Run with
+    // -Dliveboot.golden=<dir> to write the dumps there instead, after an intended change.
+
+    public static final int WIDTH = 24 * 8;
+    public static final int HEIGHT = 4 * 16;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private GlyphBake mBake;
+
+    public static GlyphBake loadBake(TemporaryFolder folder) throws Exception {
+        // GlyphBake maps a file, resources may live in a jar
+        File file = folder.newFile("liveboot.glyphs");
+        InputStream is = SoftwareRasterizerTest.class.getResourceAsStream("liveboot.glyphs");
+        assertNotNull("liveboot.glyphs", is);
+        try {
+            FileOutputStream os = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = is.read(buffer)) > 0) os.write(buffer, 0, read);
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        GlyphBake bake = GlyphBake.read(file, GlyphBake.readChecksum(file));
+        assertNotNull(bake);
+        return bake;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mBake = loadBake(mFolder);
+        assertEquals(8, mBake.getAtlas().getCellWidth());
+        assertEquals(16, mBake.getAtlas().getCellHeight());
+    }
+
+    private SoftwareRasterizer rasterizer() {
+        return new SoftwareRasterizer(mBake.getAtlas(), mBake.getPixels(), WIDTH, HEIGHT);
+    }
+
+    private static int[] readGolden(String name) throws Exception {
+        InputStream is = SoftwareRasterizerTest.class.getResourceAsStream(name + ".argb");
+        assertNotNull(name + ".argb", is);
+        DataInputStream in = new DataInputStream(is);
+        try {
+            int[] pixels = new int[WIDTH * HEIGHT];
+            for (int i = 0; i < pixels.length; i++) pixels[i] = in.readInt();
+            assertEquals(-1, in.read());
+            return pixels;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeGolden(String directory, String name, int[] pixels) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int pixel : pixels) out.writeInt(pixel);
+        FileOutputStream os = new FileOutputStream(new File(directory, name + ".argb"));
+        try {
+            os.write(bytes.toByteArray());
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void assertGolden(String name, int[] actual) throws Exception {
+        String update = System.getProperty("liveboot.golden");
+        if (update != null) {
+            writeGolden(update, name, actual);
+            return;
+        }
+        int[] expected = readGolden(name);
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                fail(String.format("%s: pixel %d,%d is %08x, expected %08x", name, i % WIDTH, i / WIDTH, actual[i], expected[i]));
+            }
+        }
+    }
+
+    @Test
+    public void text() throws Exception {
+        ScreenBuilder screen = new ScreenBuilder(4, 24);
+        screen.add("LiveBoot [0.123] init", 0xFFFFFFFF, true);
+        screen.add("I/zygote: ~{}|$%&@#", 0xFF00FF00, true);
+        screen.add("wraps at a space, then hard", 0xFFFF8000, true);
+        SoftwareRasterizer rasterizer = rasterizer();
+        assertTrue(rasterizer.render(screen.get(), 0xFF000000));
+        assertGolden("text", rasterizer.getPixels());
+    }
+
+    @Test
+    public void scrolledWithFallback() throws Exception {
+        // head moved, and chars outside the fixed glyphs are drawn as '?'
+        ScreenBuilder screen = new ScreenBuilder(4, 24);
+        for (int i = 0; i < 6; i++) {
+            screen.add("line " + i + (i == 5 ? " é中" : ""), 0xFF40A0FF, true);
+        }
+        assertTrue(screen.get().getHead() != 0);
+        SoftwareRasterizer rasterizer = rasterizer();
+        rasterizer.render(screen.get(), 0xFF000000);
+        assertGolden("scrolled", rasterizer.getPixels());
+    }
+
+    @Test
+    public void translucent() throws Exception {
+        // blending on a transparent background, and a translucent color
+        ScreenBuilder screen = new ScreenBuilder(4, 24);
+        screen.add("transparent background", 0xFFFFFFFF, true);
+        screen.add("half alpha text", 0x80FF0000, true);
+        SoftwareRasterizer rasterizer = rasterizer();
+        rasterizer.render(screen.get(), 0x00000000);
+        assertGolden("translucent", rasterizer.getPixels());
+    }
+
+    @Test
+    public void rendersOnlyOnChange() {
+        ScreenBuilder screen = new ScreenBuilder(4, 24);
+        screen.add("one", 0xFFFFFFFF, true);
+        SoftwareRasterizer rasterizer = rasterizer();
+        assertTrue(rasterizer.render(screen.get(), 0xFF000000));
+        assertFalse(rasterizer.render(screen.get(), 0xFF000000));
+        screen.add("two", 0xFFFFFFFF, true);
+        assertTrue(rasterizer.render(screen.get(), 0xFF000000));
+
+        // resize forgets what was drawn
+        rasterizer.resize(WIDTH, HEIGHT);
+        assertTrue(rasterizer.render(screen.get(), 0xFF000000));
+    }
+
+    @Test
+    public void clipsToGrid() {
+        // rows and columns that don't fit completely aren't drawn
+        ScreenBuilder screen = new ScreenBuilder(4, 24);
+        for (int i = 0; i < 4; i++) screen.add("MMMMMMMMMMMMMMMMMMMMMMMM", 0xFFFFFFFF, true);
+        SoftwareRasterizer rasterizer = new SoftwareRasterizer(mBake.getAtlas(), mBake.getPixels(), WIDTH - 4, HEIGHT - 4);
+        assertEquals(23, rasterizer.getColumns());
+        assertEquals(3, rasterizer.getRows());
+        rasterizer.render(screen.get(), 0xFF000000);
+        int[] pixels = rasterizer.getPixels();
+        int width = rasterizer.getWidth();
+        for (int y = 0; y < rasterizer.getHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                if ((x >= 23 * 8) || (y >= 3 * 16)) assertEquals(0xFF000000, pixels[y * width + x]);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/* Copyright (C) 2011-2024 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.liveboot.shell;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TextGridTest {
+    private static final int ROWS = 3;
+    private static final int COLUMNS = 64;
+
+    private final ScreenBuilder mScreen = new ScreenBuilder(ROWS, COLUMNS);
+    private final TextGrid mGrid = new TextGrid(ROWS, COLUMNS);
+    private final ByteBuffer mVertices = ByteBuffer.allocate(mGrid.getVertexBufferSize()).order(ByteOrder.nativeOrder());
+    private final int[] mRanges = new int[ROWS * 2];
+
+    private int collect(GlyphAtlas atlas) {
+        return mGrid.collect(mScreen.get(), mVertices, atlas, mRanges);
+    }
+
+    private static String paged(int first, int count) {
+        // chars that need a page each
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append((char)(first + i));
+        return sb.toString();
+    }
+
+    private int getGlyphs(int slot) {
+        // quads in the slot's range, up to the first zeroed one
+        int offset = slot * COLUMNS * TextGrid.GLYPH_SIZE;
+        int glyphs = 0;
+        while ((glyphs < COLUMNS) && !isZero(offset + glyphs * TextGrid.GLYPH_SIZE, TextGrid.GLYPH_SIZE)) glyphs++;
+        return glyphs;
+    }
+
+    private boolean isZero(int offset, int size) {
+        for (int i = offset; i < offset + size; i++) {
+            if (mVertices.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    private void assertSlot(GlyphAtlas atlas, int slot) {
+        // every quad of the slot points at the cell its char currently has in the atlas
+        ScreenModel model = mScreen.get();
+        String text = model.getRowText(slot);
+        int offset = slot * COLUMNS * TextGrid.GLYPH_SIZE;
+        int glyphs = getGlyphs(slot);
+        assertEquals(text == null ? 0 : text.length(), glyphs);
+        for (int g = 0; g < glyphs; g++) {
+            int vertex = offset + g * TextGrid.GLYPH_SIZE;
+            int column = mVertices.getShort(vertex);
+            assertEquals(slot, mVertices.getShort(vertex + 4));
+            short u0 = mVertices.getShort(vertex + 8);
+            short v0 = mVertices.getShort(vertex + 10);
+            char expected = text.charAt(column);
+            int index = -1;
+            for (int i = 0; i < atlas.getGlyphCount(); i++) {
+                if ((atlas.getU0(i) == u0) && (atlas.getV0(i) == v0)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index == -1) fail("slot " + slot + " column " + column + ": no such cell");
+            char actual = atlas.getChar(index);
+            assertTrue("slot " + slot + " column " + column + ": " + actual + " for " + expected, (actual == expected) || (actual == GlyphAtlas.FALLBACK));
+        }
+    }
+
+    @Test
+    public void writesOnlyChangedSlots() {
+        GlyphAtlas atlas = new GlyphAtlas(8, 16, 128);
+        mScreen.add("first", 0, true);
+        mScreen.add("second", 0, true);
+        assertEquals(2, collect(atlas));
+        assertEquals(0, mRanges[0]);
+        assertEquals(5 * TextGrid.GLYPH_SIZE, mRanges[1]);
+        assertEquals(COLUMNS * TextGrid.GLYPH_SIZE, mRanges[2]);
+        assertEquals(6 * TextGrid.GLYPH_SIZE, mRanges[3]);
+
+        // nothing changed
+        assertEquals(0, collect(atlas));
+
+        mScreen.add("third", 0, true);
+        assertEquals(1, collect(atlas));
+        assertEquals(2 * COLUMNS * TextGrid.GLYPH_SIZE, mRanges[0]);
+        assertEquals(5 * TextGrid.GLYPH_SIZE, mRanges[1]);
+        for (int slot = 0; slot < ROWS; slot++) assertSlot(atlas, slot);
+    }
+
+    @Test
+    public void shorterRowClearsRest() {
+        GlyphAtlas atlas = new GlyphAtlas(8, 16, 128);
+        for (int i = 0; i < ROWS; i++) mScreen.add("abcdef", 0, true);
+        collect(atlas);
+
+        // scrolls into slot 0, the range covers the glyphs that were there before
+        mScreen.add("ab", 0, true);
+        assertEquals(1, collect(atlas));
+        assertEquals(0, mRanges[0]);
+        assertEquals(6 * TextGrid.GLYPH_SIZE, mRanges[1]);
+        assertEquals(2, getGlyphs(0));
+        assertTrue(isZero(2 * TextGrid.GLYPH_SIZE, 4 * TextGrid.GLYPH_SIZE));
+    }
+
+    @Test
+    public void spacesGetNoQuad() {
+        GlyphAtlas atlas = new GlyphAtlas(8, 16, 128);
+        mScreen.add("a b", 0, true);
+        collect(atlas);
+        assertEquals(2 * TextGrid.GLYPH_SIZE, mRanges[1]);
+        assertEquals(2, mVertices.getShort(TextGrid.GLYPH_SIZE)); // column of 'b'
+    }
+
+    @Test
+    public void evictionRewritesAll() {
+        // two pages of 64 glyphs; a full page per line, the third line evicts the first page
+        GlyphAtlas atlas = new GlyphAtlas(8, 16, 128).withPages(2);
+
+        mScreen.add(paged(0x4E00, COLUMNS), 0, true);
+        assertEquals(1, collect(atlas));
+        mScreen.add(paged(0x4E40, COLUMNS), 0, true);
+        assertEquals(1, collect(atlas));
+        long generation = atlas.getGeneration();
+        for (int slot = 0; slot < 2; slot++) assertSlot(atlas, slot);
+
+        mScreen.add(paged(0x4E80, 1), 0, true);
+        assertEquals(3, collect(atlas));
+        assertTrue(atlas.getGeneration() != generation);
+        for (int slot = 0; slot < ROWS; slot++) assertSlot(atlas, slot);
+
+        // and next frame it's back to changed slots only
+        assertEquals(0, collect(atlas));
+    }
+
+    @Test
+    public void resetWritesAll() {
+        GlyphAtlas atlas = new GlyphAtlas(8, 16, 128);
+        mScreen.add("one", 0, true);
+        mScreen.add("two", 0, true);
+        collect(atlas);
+        mGrid.reset(ROWS, COLUMNS);
+        assertEquals(2, collect(atlas));
+    }
+}